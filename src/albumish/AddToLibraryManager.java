@@ -8,9 +8,15 @@
 package albumish;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jaudiotagger.audio.AudioFile;
 import org.jaudiotagger.audio.AudioFileIO;
@@ -22,10 +28,16 @@ import org.jaudiotagger.tag.id3.ID3v1Tag;
 
 public class AddToLibraryManager {
 
+    // How many files each tag reader thread can read ahead of the database.
+    private static final int READ_AHEAD = 4;
+    // How often to update the progress dialog.
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
     public Jukebox jukebox;
     private String pathname;
     private String tags;
     private ProgressDialog dialog;
+    private Set<String> known_files;
     private int file_count;
     private int done_count;
 
@@ -47,6 +59,13 @@ public class AddToLibraryManager {
         }
         this.dialog = new ProgressDialog(this.jukebox.main_window,
                 "Add to Library...", "Processing " + this.pathname + "...");
+        // Read the database here, in the UI thread, which is the only thread that changes it.
+        this.known_files = new TreeSet<>();
+        for (Song song : this.jukebox.database.song_list) {
+            if (song.filename != null) {
+                this.known_files.add(song.filename);
+            }
+        }
 
         Runnable runnable = new Runnable() {
             @Override
@@ -58,39 +77,73 @@ public class AddToLibraryManager {
         thread.start();
     }
 
+    /**
+     * The result of reading one file's tags.
+     */
+    private static class TagResult {
+        public final Song song;
+        public final SongInfo obj;
+
+        public TagResult(Song song, SongInfo obj) {
+            this.song = song;
+            this.obj = obj;
+        }
+    }
+
     /**
      * Find every file in the directory tree rooted at the given pathname. Add each media file to
      * the database.
+     *
+     * A pool of threads reads the files' tags, while this thread collects the songs in the order
+     * that the files were found, and passes them to the UI thread in batches to be added to the
+     * database. The pool can only read a limited number of files ahead of this thread.
      */
     private void run_add_to_library() {
-        Database database = this.jukebox.database;
-        Set<String> known_files = new TreeSet<>();
-        for (Song song : database.song_list) {
-            if (song.filename != null) {
-                known_files.add(song.filename);
-            }
-        }
         List<String> file_list = Utils.read_directory_tree(
-                new File(this.pathname), known_files);
+                new File(this.pathname), this.jukebox.getHomeDirectory(), this.known_files);
         this.file_count = file_list.size();
         this.done_count = 0;
         this.dialog.set_bottom_label("Done: 0 / " + this.file_count);
-        for (String filename : file_list) {
-            if (this.pathname == null) {
-                break;
-            }
-            filename = this.jukebox.getRelativeFilename(filename);
-            Song song = new Song();
-            SongInfo obj = new SongInfo();
-            read_id3_tags(filename, song, obj);
-            if (song.title != null) {
-                song.tags = tags;
-                database.add_song(song, obj);
+        int num_threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService readers = Executors.newFixedThreadPool(num_threads);
+        Deque<Future<TagResult>> pending = new ArrayDeque<>();
+        List<TagResult> batch = new ArrayList<>();
+        int next_idx = 0;
+        long last_progress = 0;
+        try {
+            while (this.pathname != null && (next_idx < this.file_count || !pending.isEmpty())) {
+                while (next_idx < this.file_count && pending.size() < num_threads * READ_AHEAD) {
+                    final String filename = file_list.get(next_idx++);
+                    pending.add(readers.submit(() -> {
+                        Song song = new Song();
+                        SongInfo obj = new SongInfo();
+                        read_id3_tags(this.jukebox, filename, song, obj);
+                        return new TagResult(song, obj);
+                    }));
+                }
+                TagResult result = pending.poll().get();
+                if (result.song.title != null) {
+                    result.song.tags = tags;
+                    batch.add(result);
+                }
+                this.done_count++;
+                long now = System.currentTimeMillis();
+                if (now - last_progress >= PROGRESS_INTERVAL_MS ||
+                        this.done_count == this.file_count) {
+                    last_progress = now;
+                    add_songs(batch);
+                    batch = new ArrayList<>();
+                    this.dialog.set_progress(this.done_count, this.file_count);
+                    this.dialog.set_bottom_label(
+                            "Done: " + this.done_count + " / " + this.file_count);
+                }
             }
-            this.done_count++;
-            this.dialog.set_progress(this.file_count, this.done_count);
-            this.dialog.set_bottom_label("Done: " + this.done_count + " / " + this.file_count);
+        } catch (Exception exception) {
+            System.err.println(this.pathname + ": " + exception);
+        } finally {
+            readers.shutdownNow();
         }
+        add_songs(batch);
         this.dialog.close_and_run(new Runnable() {
             @Override
             public void run() {
@@ -99,9 +152,30 @@ public class AddToLibraryManager {
         });
     }
 
-    private void read_id3_tags(String filename, Song song, SongInfo obj) {
+    /**
+     * Add the songs to the database in the UI thread.
+     */
+    private void add_songs(final List<TagResult> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        this.jukebox.main_window.getDisplay().asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                Database database = AddToLibraryManager.this.jukebox.database;
+                for (TagResult result : batch) {
+                    database.put_song(result.song, result.obj);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the song's fields from the tags of the given file.
+     */
+    static void read_id3_tags(Jukebox jukebox, String filename, Song song, SongInfo obj) {
         song.filename = filename;
-        File file = this.jukebox.getFile(song);
+        File file = jukebox.getFile(song);
         AudioFile audio;
         try {
             audio = AudioFileIO.read(file);
@@ -111,24 +185,26 @@ public class AddToLibraryManager {
         }
         Tag tag = audio.getTag();
         song.mtime = (int) (file.lastModified() / 1000L);
+        song.size = file.length();
+        song.hash = Utils.partial_hash(file);
         if (tag != null) {
             song.title = normalize(tag.getFirst(FieldKey.TITLE));
             obj.artist = normalize(tag.getFirst(FieldKey.ARTIST));
             obj.album = normalize(tag.getFirst(FieldKey.ALBUM));
             obj.album_artist = normalize(tag.getFirst(FieldKey.ALBUM_ARTIST));
             song.track_number = Utils.parseInt(tag.getFirst(FieldKey.TRACK));
-            song.year = Utils.parseInt(tag.getFirst(FieldKey.YEAR));
-            song.bpm = normalize(tag.getFirst(FieldKey.BPM));
-            song.id3 = getTagClass(tag);
-            song.encoder = getEncoder(song, tag);
+            obj.year = Utils.parseInt(tag.getFirst(FieldKey.YEAR));
+            obj.bpm = normalize(tag.getFirst(FieldKey.BPM));
+            obj.id3 = getTagClass(tag);
+            obj.encoder = getEncoder(obj, tag);
         }
         if (song.title == null) {
             song.title = file.getName();
         }
         AudioHeader header = audio.getAudioHeader();
         song.duration = header.getTrackLength();
-        song.bitrate = header.getBitRate();
-        song.add_time = (int) (System.currentTimeMillis() / 1000L);
+        obj.bitrate = header.getBitRate();
+        obj.add_time = (int) (System.currentTimeMillis() / 1000L);
     }
 
     private static String normalize(String item) {
@@ -147,7 +223,7 @@ public class AddToLibraryManager {
         return name;
     }
 
-    private static String getEncoder(Song song, Tag tag) {
+    private static String getEncoder(SongInfo obj, Tag tag) {
         String encoder = null;
         if (!(tag instanceof ID3v1Tag)) {
             try {
@@ -156,10 +232,10 @@ public class AddToLibraryManager {
             }
         }
         if (encoder != null && encoder.startsWith("LAME ")) {
-            song.encoderVersion = encoder.substring(5);
-            String[] words = song.encoderVersion.split(" ");
+            obj.encoderVersion = encoder.substring(5);
+            String[] words = obj.encoderVersion.split(" ");
             if (words.length == 4 && words[0].endsWith("bits") && words[1].equals("version")) {
-                song.encoderVersion = "v" + words[2];
+                obj.encoderVersion = "v" + words[2];
             }
             return "lame";
         }
@@ -174,7 +250,7 @@ public class AddToLibraryManager {
         }
         encoder = tag.getFirst(FieldKey.ENCODER);
         if (encoder != null && encoder.startsWith("iTunes ")) {
-            song.encoderVersion = encoder.substring(7);
+            obj.encoderVersion = encoder.substring(7);
             return "itunes";
         }
         TagField field = tag.getFirstField("PRIV");
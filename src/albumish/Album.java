@@ -3,6 +3,7 @@ package albumish;
 public class Album {
     public int id;
     public String name;
+    public String key;
     public int artistid;
     public int year;
     public int[] song_list;
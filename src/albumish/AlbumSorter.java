@@ -53,12 +53,12 @@ public class AlbumSorter implements Comparator<Integer> {
             value = a1.year - a2.year;
             break;
         case ALBUM:
-            value = string_compare(a1.name, a2.name);
+            value = string_compare(a1.key, a2.key);
             break;
         case ARTIST:
             value = string_compare(
-                    this.database.artist_list.get(a1.artistid).name,
-                    this.database.artist_list.get(a2.artistid).name);
+                    this.database.artist_list.get(a1.artistid).key,
+                    this.database.artist_list.get(a2.artistid).key);
             break;
         }
         if (value != 0) {
@@ -70,17 +70,20 @@ public class AlbumSorter implements Comparator<Integer> {
             break;
         case YEAR_NEWEST:
         case YEAR_OLDEST:
-            value = string_compare(a1.name, a2.name);
+            value = string_compare(a1.key, a2.key);
             break;
         case ALBUM:
             value = string_compare(
-                    this.database.artist_list.get(a1.artistid).name,
-                    this.database.artist_list.get(a2.artistid).name);
+                    this.database.artist_list.get(a1.artistid).key,
+                    this.database.artist_list.get(a2.artistid).key);
             break;
         }
         return value;
     }
 
+    /**
+     * Compare search keys, which are already lower case.
+     */
     private static int string_compare(String s1, String s2) {
         if (s1 == null) {
             if (s2 == null) {
@@ -90,6 +93,6 @@ public class AlbumSorter implements Comparator<Integer> {
         } else if (s2 == null) {
             return -1;
         }
-        return s1.toLowerCase().compareTo(s2.toLowerCase());
+        return s1.compareTo(s2);
     }
 }
@@ -3,4 +3,5 @@ package albumish;
 public class Artist {
     public int id;
     public String name;
+    public String key;
 }
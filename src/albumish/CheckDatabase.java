@@ -7,23 +7,54 @@
  */
 package albumish;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
+/**
+ * The list of songs to display with check marks.
+ *
+ * The file holds the default value, followed by the sorted hashes of the filenames of the songs
+ * whose value is not the default, followed by a log of changes. Each change is a filename hash
+ * and whether the song's value is now not the default. Changes are appended to the file as they
+ * happen, and the file is rewritten when the log gets long.
+ */
 public class CheckDatabase {
 
+    private static final int MAGIC = 0x414c4243;
+    private static final int VERSION = 1;
+    // The magic number, version, default value and number of hashes.
+    private static final int HEADER_SIZE = 13;
+    private static final int CHANGE_SIZE = 9;
+    // Rewrite the file when the log has this many changes.
+    private static final int LOG_LIMIT = 1000;
+    // The file that older versions used, with one filename per line.
+    private static final String LEGACY_FILENAME = "checked_songs.list";
+
     private final Database database;
     private File file;
     private boolean default_value;
-    private Set<Integer> songids;
+    // The songs whose value is not the default value, indexed by song id.
+    private BitSet songids;
+    private DataOutputStream log;
+    private int log_size;
     private boolean is_changed;
 
     /**
@@ -34,17 +65,86 @@ public class CheckDatabase {
         this.database = database;
         this.file = new File(directory, filename);
         this.default_value = true;
-        this.songids = new TreeSet<>();
+        this.songids = new BitSet();
+        this.is_changed = false;
+
+        File legacy_file = new File(directory, LEGACY_FILENAME);
+        if (!this.file.exists() && legacy_file.exists()) {
+            if (load_legacy(legacy_file)) {
+                this.is_changed = true;
+                save();
+            }
+            return;
+        }
+        if (this.file.exists()) {
+            try {
+                load();
+            } catch (Exception exception) {
+                System.err.println(this.file + ": " + exception);
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        long[] hashes;
+        Map<Long, Boolean> changes = new HashMap<>();
+        try (DataInputStream istream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(this.file)))) {
+            if (istream.readInt() != MAGIC || istream.readInt() != VERSION) {
+                throw new IOException("Unknown file format");
+            }
+            this.default_value = istream.readBoolean();
+            hashes = new long[istream.readInt()];
+            for (int idx = 0; idx < hashes.length; idx++) {
+                hashes[idx] = istream.readLong();
+            }
+            // Read changes until the end of the file, or a change that was cut off by a crash.
+            try {
+                while (true) {
+                    long hash = istream.readLong();
+                    changes.put(hash, istream.readBoolean());
+                    this.log_size++;
+                }
+            } catch (EOFException exception) {
+            }
+        }
+        long log_start = HEADER_SIZE + (long) hashes.length * Long.BYTES;
+        long length = log_start + (long) this.log_size * CHANGE_SIZE;
+        if (this.file.length() > length) {
+            // Cut off the partial change, so that new changes are appended after the last
+            // whole one.
+            try (FileOutputStream ostream = new FileOutputStream(this.file, true)) {
+                ostream.getChannel().truncate(length);
+            }
+        }
+        int num_songs = this.database.song_list.size();
+        for (int songid = 1; songid < num_songs; songid++) {
+            Song song = this.database.song_list.get(songid);
+            if (song == null || song.filename == null) {
+                continue;
+            }
+            long hash = hash(song.filename);
+            Boolean value = changes.get(hash);
+            if (value != null ? value : Arrays.binarySearch(hashes, hash) >= 0) {
+                this.songids.set(songid);
+            }
+        }
+    }
 
+    /**
+     * Read the list of checked files in the format that older versions used: the default value,
+     * followed by one filename per line.
+     */
+    private boolean load_legacy(File legacy_file) {
         BufferedReader reader = null;
         try {
-            reader = new BufferedReader(new FileReader(this.file));
+            reader = new BufferedReader(new FileReader(legacy_file));
             String line = reader.readLine();
             this.default_value = (Integer.parseInt(line) != 0);
             Map<String, Integer> known_files = new TreeMap<>();
-            int num_songs = database.song_list.size();
+            int num_songs = this.database.song_list.size();
             for (int idx = 1; idx < num_songs; idx++) {
-                Song song = database.song_list.get(idx);
+                Song song = this.database.song_list.get(idx);
                 if ((song != null) && (song.filename != null)) {
                     known_files.put(song.filename, song.id);
                 }
@@ -52,60 +152,122 @@ public class CheckDatabase {
             while ((line = reader.readLine()) != null) {
                 Integer songid = known_files.get(line);
                 if (songid != null) {
-                    this.songids.add(songid);
+                    this.songids.set(songid);
                 }
             }
             reader.close();
-            reader = null;
+            return true;
         } catch (Exception exception) {
             Utils.quietClose(reader);
-            System.err.println(this.file + ": " + exception);
+            System.err.println(legacy_file + ": " + exception);
+            return false;
         }
-        this.is_changed = false;
     }
 
     /**
-     * Write the list of checked files.
+     * Rewrite the file if the log of changes is long. The changes are already in the file, so
+     * otherwise there is nothing to do.
      */
     public void save() {
-        if (!this.is_changed) {
-            return;
+        if (this.is_changed || this.log_size >= LOG_LIMIT) {
+            compact();
+        }
+        Utils.quietClose(this.log);
+        this.log = null;
+    }
+
+    /**
+     * Write the sorted hashes of all of the songs whose value is not the default, with no log.
+     */
+    private void compact() {
+        Utils.quietClose(this.log);
+        this.log = null;
+        long[] hashes = new long[this.songids.cardinality()];
+        int count = 0;
+        for (int songid = this.songids.nextSetBit(0); songid >= 0;
+             songid = this.songids.nextSetBit(songid + 1)) {
+            Song song = this.database.song_list.get(songid);
+            if ((song != null) && (song.filename != null)) {
+                hashes[count++] = hash(song.filename);
+            }
         }
-        BufferedWriter writer = null;
+        Arrays.sort(hashes, 0, count);
+        File tmpfile = new File(this.file.getPath() + ".tmp");
         try {
-            writer = new BufferedWriter(new FileWriter(this.file));
-            writer.write(this.default_value ? "1" : "0");
-            writer.newLine();
-            for (Integer songid : this.songids) {
-                Song song = this.database.song_list.get(songid);
-                if ((song != null) && (song.filename != null)) {
-                    writer.write(song.filename);
-                    writer.newLine();
+            try (DataOutputStream ostream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpfile)))) {
+                ostream.writeInt(MAGIC);
+                ostream.writeInt(VERSION);
+                ostream.writeBoolean(this.default_value);
+                ostream.writeInt(count);
+                for (int idx = 0; idx < count; idx++) {
+                    ostream.writeLong(hashes[idx]);
                 }
             }
-            writer.close();
-            writer = null;
+            Utils.replace_file(tmpfile, this.file);
+            this.log_size = 0;
             this.is_changed = false;
         } catch (Exception exception) {
-            Utils.quietClose(writer);
+            tmpfile.delete();
             System.err.println(this.file + ": " + exception);
         }
     }
 
     public boolean get(int songid) {
-        boolean found = this.songids.contains(songid);
-        return (this.default_value ? !found : found);
+        return this.songids.get(songid) != this.default_value;
     }
 
     public void set(int songid, boolean value) {
-        if (this.default_value == value) {
-            this.songids.remove(songid);
-        } else {
-            this.songids.add(songid);
+        boolean is_exception = (value != this.default_value);
+        if (this.songids.get(songid) == is_exception) {
+            return;
+        }
+        this.songids.set(songid, is_exception);
+        Song song = this.database.song_list.get(songid);
+        if (song == null || song.filename == null) {
+            return;
+        }
+        if (!this.file.exists()) {
+            // Write the header, followed by every song, including this one.
+            compact();
+            return;
+        }
+        try {
+            if (this.log == null) {
+                this.log = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(this.file, true), CHANGE_SIZE));
+            }
+            this.log.writeLong(hash(song.filename));
+            this.log.writeBoolean(is_exception);
+            this.log.flush();
+            this.log_size++;
+        } catch (Exception exception) {
+            System.err.println(this.file + ": " + exception);
+            // Write the whole file at the next save.
+            this.is_changed = true;
         }
+    }
+
+    /**
+     * Called after songs have moved to new filenames. The file is keyed by filename, so it must
+     * be rewritten at the next save.
+     */
+    public void songs_renamed() {
         this.is_changed = true;
     }
 
+    /**
+     * @return the 64-bit FNV-1a hash of the filename.
+     */
+    private static long hash(String filename) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte value : filename.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (value & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
     /**
      * Write the list of checked files in a format that can be imported by iTunes, so you can use
      * this program to select the songs to sync to your iPod.
@@ -129,7 +291,8 @@ public class CheckDatabase {
                         writer.write(artist.name);
                     }
                     writer.write("\t");
-                    Album album = this.database.album_list.get(song.albumid);
+                    int albumid = this.database.columns.get_albumid(songid);
+                    Album album = this.database.album_list.get(albumid);
                     if (album.name != null) {
                         writer.write(album.name);
                     }
@@ -148,10 +311,27 @@ public class CheckDatabase {
      * @return array with every checked song in the database.
      */
     public IntList get_checked_songids() {
-        if (!this.default_value) {
-            return new IntList(this.songids.toArray(new Integer[0]));
+        IntList song_list = new IntList();
+        int num_songs = this.database.song_list.size();
+        int songid = next_checked_songid(1);
+        while (songid >= 0 && songid < num_songs) {
+            Song song = this.database.song_list.get(songid);
+            if (song != null && song.filename != null) {
+                song_list.add(songid);
+            }
+            songid = next_checked_songid(songid + 1);
+        }
+        return song_list;
+    }
+
+    /**
+     * @return the first checked song id that is at least the given id. If every song is
+     *         checked by default, then this can be past the end of the song list.
+     */
+    private int next_checked_songid(int songid) {
+        if (this.default_value) {
+            return this.songids.nextClearBit(songid);
         }
-        // TODO
-        return null;
+        return this.songids.nextSetBit(songid);
     }
 }
@@ -7,6 +7,10 @@
  */
 package albumish;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.ControlEvent;
 import org.eclipse.swt.events.ControlListener;
@@ -18,6 +22,7 @@ import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.events.SelectionListener;
 import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.Point;
@@ -40,6 +45,38 @@ public class CoverPanel extends Canvas implements
 
     private static final int text_spacing = 12;
     private static final int select_box_thickness = 5;
+    // How many captions to keep. A wide window shows a few dozen covers, so this is a few
+    // screens' worth.
+    private static final int max_captions = 128;
+
+    /**
+     * The artist and album names under a cover, shortened to fit and measured. They are kept
+     * so that scrolling and filtering don't measure the same names again on every paint.
+     */
+    private static class Caption {
+        // The names and the font and width that the caption was made for.
+        public final String artist_name;
+        public final String album_name;
+        public final Font font;
+        public final int width;
+        public String artist_text;
+        public Point artist_extent;
+        public String album_text;
+        public Point album_extent;
+
+        public Caption(String artist_name, String album_name, Font font, int width) {
+            this.artist_name = artist_name;
+            this.album_name = album_name;
+            this.font = font;
+            this.width = width;
+        }
+
+        public boolean is_valid(String artist_name, String album_name, Font font, int width) {
+            return this.width == width && this.font.equals(font) &&
+                    Objects.equals(this.artist_name, artist_name) &&
+                    Objects.equals(this.album_name, album_name);
+        }
+    }
 
     private final Jukebox player;
     private final AlbumSorter sorter;
@@ -51,6 +88,9 @@ public class CoverPanel extends Canvas implements
     private int panel_width;
     private int mouse_down_idx;
     private int anchor;
+    // The scroll bar position that the contents of the window were drawn at.
+    private int scroll_base;
+    private final Map<Integer, Caption> captions;
 
     public CoverPanel(Jukebox player, Composite parent) {
         super(parent, SWT.H_SCROLL | SWT.DOUBLE_BUFFERED);
@@ -59,6 +99,14 @@ public class CoverPanel extends Canvas implements
         this.sorter = new AlbumSorter(player.database);
         get_sizes_from_gallery();
         this.album_list = new int[0];
+        this.captions = new LinkedHashMap<Integer, Caption>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Caption> eldest) {
+                return size() > max_captions;
+            }
+        };
         addPaintListener(this);
         addControlListener(this);
         addMouseListener(this);
@@ -86,6 +134,10 @@ public class CoverPanel extends Canvas implements
         return 0;
     }
 
+    public int[] get_album_list() {
+        return this.album_list;
+    }
+
     public void reset(int[] new_list) {
         int albumid = get_selected_albumid();
         this.album_list = new_list;
@@ -100,6 +152,8 @@ public class CoverPanel extends Canvas implements
 
     private void do_sort_and_reset(int albumid) {
         this.selected_idx = 0;
+        // Sort a copy, so the gallery sees a new list and finds the albums' new positions.
+        this.album_list = this.album_list.clone();
         this.sorter.sort(this.album_list);
 
         this.panel_width = (this.border_width + this.image_width) *
@@ -125,9 +179,8 @@ public class CoverPanel extends Canvas implements
             return false;
         }
         this.selected_idx = new_idx;
-        if (!center_selected_album()) {
-            redraw_albums(old_idx, new_idx);
-        }
+        center_selected_album();
+        redraw_albums(old_idx, new_idx);
         this.player.select_album(this.album_list[this.selected_idx]);
         return true;
     }
@@ -145,6 +198,58 @@ public class CoverPanel extends Canvas implements
         scrollbar.setIncrement(this.image_width);
         scrollbar.setPageIncrement(bounds.width);
         scrollbar.setThumb(bounds.width);
+        scroll_contents();
+    }
+
+    /**
+     * Move the contents of the window to match the scroll bar. The covers that are still in the
+     * window are copied, and only the part of the window that was scrolled into view is painted.
+     */
+    private void scroll_contents() {
+        int base = getHorizontalBar().getSelection();
+        int delta = base - this.scroll_base;
+        if (delta == 0) {
+            return;
+        }
+        // Paint anything that is waiting to be painted before it moves.
+        update();
+        this.scroll_base = base;
+        Rectangle area = getClientArea();
+        if (Math.abs(delta) >= area.width) {
+            redraw();
+            return;
+        }
+        scroll(Math.max(-delta, 0), 0, Math.max(delta, 0), 0,
+                area.width - Math.abs(delta), area.height, false);
+    }
+
+    /**
+     * @return the x coordinate of the album's cover, relative to the start of the panel.
+     */
+    private int get_slot_xpos(int idx) {
+        int xpos = this.border_width + idx * (this.border_width + this.image_width);
+        if (idx > this.selected_idx) {
+            xpos += this.selected_width - this.image_width;
+        }
+        return xpos;
+    }
+
+    /**
+     * @return the index of the album whose cover, or the border before it, is at the given x
+     *         coordinate, relative to the start of the panel. This may be past the end of the
+     *         album list.
+     */
+    private int get_slot_idx(int xpos) {
+        int album_width = this.border_width + this.image_width;
+        int selected_start = this.selected_idx * album_width;
+        if (xpos < selected_start) {
+            return Math.max(xpos / album_width, 0);
+        }
+        int extra = this.selected_width - this.image_width;
+        if (xpos < selected_start + album_width + extra) {
+            return this.selected_idx;
+        }
+        return (xpos - extra) / album_width;
     }
 
     @Override
@@ -155,7 +260,7 @@ public class CoverPanel extends Canvas implements
     public void widgetSelected(SelectionEvent event) {
         if (event.widget instanceof ScrollBar) {
             // The scrollbar was moved.
-            redraw();
+            scroll_contents();
             return;
         }
         Cmd command = (Cmd) event.widget.getData();
@@ -185,15 +290,16 @@ public class CoverPanel extends Canvas implements
 
     @Override
     public void paintControl(PaintEvent event) {
-        int base = getHorizontalBar().getSelection();
-        int xpos = 0;
+        int base = this.scroll_base;
+        this.player.gallery.set_visible_albums(this.album_list, get_slot_idx(base),
+                get_slot_idx(base + getClientArea().width), this.selected_idx);
         int default_ypos = this.border_width +
                 (this.selected_width - this.image_width) / 2;
-        for (int idx = 0; idx < this.album_list.length; idx++) {
-            xpos += this.border_width;
-            if (xpos >= base + event.x + event.width) {
-                break;
-            }
+        int first_idx = get_slot_idx(base + event.x);
+        int last_idx = Math.min(get_slot_idx(base + event.x + event.width - 1),
+                this.album_list.length - 1);
+        for (int idx = first_idx; idx <= last_idx; idx++) {
+            int xpos = get_slot_xpos(idx);
             int width = this.image_width;
             int ypos = default_ypos;
             boolean is_selected = (idx == this.selected_idx);
@@ -201,45 +307,43 @@ public class CoverPanel extends Canvas implements
                 width = this.selected_width;
                 ypos = this.border_width;
             }
-            if (xpos + width > base + event.x) {
-                int albumid = this.album_list[idx];
-                Image image = this.player.gallery.get(albumid, is_selected);
-                if (image != null) {
-                    Rectangle bounds = image.getBounds();
-                    event.gc.drawImage(image, bounds.x, bounds.y, bounds.width, bounds.height,
-                            xpos - base, ypos, bounds.width, bounds.height);
-                } else {
-                    event.gc.drawRectangle(xpos - base, ypos, width - 1, width - 1);
+            int albumid = this.album_list[idx];
+            Image image = this.player.gallery.get(albumid, is_selected);
+            if (image != null) {
+                Rectangle bounds = image.getBounds();
+                event.gc.drawImage(image, bounds.x, bounds.y, bounds.width, bounds.height,
+                        xpos - base, ypos, bounds.width, bounds.height);
+            } else {
+                event.gc.drawRectangle(xpos - base, ypos, width - 1, width - 1);
+            }
+            if (idx == this.mouse_down_idx) {
+                GC gc = event.gc;
+                Color default_color = gc.getForeground();
+                gc.setForeground(getDisplay().getSystemColor(SWT.COLOR_BLACK));
+                gc.drawRectangle(xpos - base, ypos, width - 1, width - 1);
+                int np = select_box_thickness;
+                int minus = 1 + np + np;
+                gc.drawRectangle(xpos - base + np, ypos + np, width - minus, width - minus);
+                gc.setForeground(getDisplay().getSystemColor(SWT.COLOR_WHITE));
+                for (int n = 1; n < select_box_thickness; n++) {
+                    minus = 1 + n + n;
+                    gc.drawRectangle(xpos - base + n, ypos + n, width - minus, width - minus);
                 }
-                if (idx == this.mouse_down_idx) {
-                    GC gc = event.gc;
-                    Color default_color = gc.getForeground();
-                    gc.setForeground(getDisplay().getSystemColor(SWT.COLOR_BLACK));
-                    gc.drawRectangle(xpos - base, ypos, width - 1, width - 1);
-                    int np = select_box_thickness;
-                    int minus = 1 + np + np;
-                    gc.drawRectangle(xpos - base + np, ypos + np, width - minus, width - minus);
-                    gc.setForeground(getDisplay().getSystemColor(SWT.COLOR_WHITE));
-                    for (int n = 1; n < select_box_thickness; n++) {
-                        minus = 1 + n + n;
-                        gc.drawRectangle(xpos - base + n, ypos + n, width - minus, width - minus);
-                    }
-                    gc.setForeground(default_color);
+                gc.setForeground(default_color);
+            }
+            if (!is_selected) {
+                Caption caption = get_caption(event.gc, albumid, width);
+                if (caption.artist_text != null) {
+                    ypos = default_ypos - text_spacing;
+                    paint_line(event.gc, caption.artist_text, caption.artist_extent,
+                            xpos - base, ypos, width, true);
                 }
-                if (!is_selected) {
-                    Album album = this.player.database.album_list.get(albumid);
-                    Artist artist = this.player.database.artist_list.get(album.artistid);
-                    if (artist.name != null) {
-                        ypos = default_ypos - text_spacing;
-                        paint_line(event.gc, artist.name, xpos - base, ypos, width, true);
-                    }
-                    if (album.name != null) {
-                        ypos = default_ypos + width + text_spacing;
-                        paint_line(event.gc, album.name, xpos - base, ypos, width, false);
-                    }
+                if (caption.album_text != null) {
+                    ypos = default_ypos + width + text_spacing;
+                    paint_line(event.gc, caption.album_text, caption.album_extent,
+                            xpos - base, ypos, width, false);
                 }
             }
-            xpos += width;
         }
     }
 
@@ -249,7 +353,7 @@ public class CoverPanel extends Canvas implements
             lo = hi;
             hi = tmp;
         }
-        int base = getHorizontalBar().getSelection();
+        int base = this.scroll_base;
         int xpos = this.border_width + lo *
                 (this.border_width + this.image_width);
         if (lo > this.selected_idx) {
@@ -265,21 +369,16 @@ public class CoverPanel extends Canvas implements
     }
 
     /**
-     * @return true if this issues a redraw request
+     * Scroll so that the selected album is in the center of the window.
      */
-    private boolean center_selected_album() {
+    private void center_selected_album() {
         // Get center of selected album.
         int center = this.selected_idx * (this.border_width + this.image_width) +
                 this.border_width + (this.selected_width / 2);
         Point size = getSize();
         int xpos = center - (size.x / 2);
-        int base = getHorizontalBar().getSelection();
         getHorizontalBar().setSelection(xpos);
-        if (base == getHorizontalBar().getSelection()) {
-            return false;
-        }
-        redraw();
-        return true;
+        scroll_contents();
     }
 
     public void invalidate_album(int albumid) {
@@ -296,7 +395,7 @@ public class CoverPanel extends Canvas implements
     @Override
     public void mouseDown(MouseEvent event) {
         if (event.button == 1) {
-            this.anchor = getHorizontalBar().getSelection() + event.x;
+            this.anchor = this.scroll_base + event.x;
         }
         int idx = get_clicked_idx(event);
         if (idx < 0) {
@@ -345,33 +444,24 @@ public class CoverPanel extends Canvas implements
     }
 
     private int get_clicked_idx(MouseEvent event) {
-        int base = getHorizontalBar().getSelection();
-        int xpos = base + event.x;
-        int size = this.album_list.length;
-        for (int idx = 0; idx < size; idx++) {
-            if (xpos < this.border_width) {
-                break;
-            }
-            xpos -= this.border_width;
-            int width = (idx == this.selected_idx ?
-                    this.selected_width : this.image_width);
-            if (xpos >= width) {
-                xpos -= width;
-                continue;
-            }
-            // Found the x coordinate.
-            int top = this.border_width;
-            int bottom = top + this.selected_width;
-            if (idx != this.selected_idx) {
-                top += (this.selected_width - this.image_width) / 2;
-                bottom = top + this.image_width;
-            }
-            if (event.y < top || event.y >= bottom) {
-                break;
-            }
-            return idx;
+        int xpos = this.scroll_base + event.x;
+        int idx = get_slot_idx(xpos);
+        if (idx >= this.album_list.length) {
+            return -1;
         }
-        return -1;
+        int width = (idx == this.selected_idx ? this.selected_width : this.image_width);
+        xpos -= get_slot_xpos(idx);
+        if (xpos < 0 || xpos >= width) {
+            return -1;
+        }
+        int top = this.border_width;
+        if (idx != this.selected_idx) {
+            top += (this.selected_width - this.image_width) / 2;
+        }
+        if (event.y < top || event.y >= top + width) {
+            return -1;
+        }
+        return idx;
     }
 
     private void select_nth_album(int idx) {
@@ -422,9 +512,33 @@ public class CoverPanel extends Canvas implements
     }
 
     /**
-     * Paint a single line of text centered in a box.
+     * @return the album's caption, from the cache if the names, font and width haven't changed.
+     */
+    private Caption get_caption(GC gc, int albumid, int width) {
+        Album album = this.player.database.album_list.get(albumid);
+        String artist_name = this.player.database.artist_list.get(album.artistid).name;
+        Font font = gc.getFont();
+        Caption caption = this.captions.get(albumid);
+        if (caption != null && caption.is_valid(artist_name, album.name, font, width)) {
+            return caption;
+        }
+        caption = new Caption(artist_name, album.name, font, width);
+        if (artist_name != null) {
+            caption.artist_text = fit_line(gc, artist_name, width);
+            caption.artist_extent = gc.stringExtent(caption.artist_text);
+        }
+        if (album.name != null) {
+            caption.album_text = fit_line(gc, album.name, width);
+            caption.album_extent = gc.stringExtent(caption.album_text);
+        }
+        this.captions.put(albumid, caption);
+        return caption;
+    }
+
+    /**
+     * @return the text, shortened with "..." if it is wider than the given width.
      */
-    private void paint_line(GC gc, String text, int xpos, int ypos, int width, boolean above) {
+    private static String fit_line(GC gc, String text, int width) {
         Point extent = gc.stringExtent(text);
         if (extent.x > width) {
             int length = text.length();
@@ -434,6 +548,14 @@ public class CoverPanel extends Canvas implements
                 extent = gc.stringExtent(text);
             }
         }
+        return text;
+    }
+
+    /**
+     * Paint a single line of text centered in a box.
+     */
+    private static void paint_line(GC gc, String text, Point extent, int xpos, int ypos,
+            int width, boolean above) {
         xpos += (width - extent.x) / 2;
         if (above) {
             ypos -= extent.y;
@@ -452,6 +574,6 @@ public class CoverPanel extends Canvas implements
             return;
         }
         scrollbar.setSelection(selection);
-        redraw();
+        scroll_contents();
     }
 }
@@ -7,14 +7,26 @@
  */
 package albumish;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
-import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 public class Database {
 
@@ -23,12 +35,52 @@ public class Database {
     public List<Artist> artist_list;
     public List<Album> album_list;
     public List<Song> song_list;
+    public SearchIndex search_index;
+    public SongColumns columns;
+    public StringDictionary strings;
     public boolean is_changed;
+    private String snapshot_filename;
+    private boolean snapshot_is_stale;
+    private Map<String, Integer> artist_index;
+    private Map<String, Integer> album_index;
+    // Sorted by filename, so that the songs in a folder are next to each other.
+    private NavigableMap<String, Integer> song_index;
+    private DatabaseJournal journal;
+
+    // Rewrite the database file after this many changes have been journaled.
+    private static final int JOURNAL_LIMIT = 10000;
 
     /**
      * Create a new Database instance, for loading from a JSON file, or adding songs from mp3 files.
      */
     public Database() {
+        clear();
+    }
+
+    /**
+     * Copy the lists of the given database, and share everything else.
+     */
+    private Database(Database database) {
+        this.directory = database.directory;
+        this.filename = database.filename;
+        this.artist_list = Collections.unmodifiableList(new ArrayList<>(database.artist_list));
+        this.album_list = Collections.unmodifiableList(new ArrayList<>(database.album_list));
+        this.song_list = Collections.unmodifiableList(new ArrayList<>(database.song_list));
+        this.search_index = database.search_index;
+        this.columns = database.columns;
+        this.strings = database.strings;
+    }
+
+    /**
+     * @return a read-only copy of the artist, album, and song lists, for a background thread
+     *         to read while the UI thread changes the database. The copy shares the Artist,
+     *         Album, and Song objects, and the indexes, with this database.
+     */
+    public Database copy_lists() {
+        return new Database(this);
+    }
+
+    private void clear() {
         // There is no artist #0, album #0, or song #0.
         this.artist_list = new ArrayList<>();
         this.artist_list.add(new Artist());
@@ -36,49 +88,320 @@ public class Database {
         this.album_list.add(new Album());
         this.song_list = new ArrayList<>();
         this.song_list.add(new Song());
+        this.artist_index = new HashMap<>();
+        this.album_index = new HashMap<>();
+        this.song_index = new TreeMap<>();
+        this.search_index = new SearchIndex();
+        this.columns = new SongColumns();
+        this.strings = new StringDictionary();
     }
 
     /**
-     * Read a song database from a JSON file.
+     * Read a song database from a JSON file. Stream through the file one song at a time, so
+     * we never hold a parsed copy of the whole file in memory.
      */
     public boolean load(File directory, String filename) {
         this.directory = directory;
         this.filename = filename;
         File file = new File(directory, filename);
-        JsonArray songArray;
-        try {
-            FileReader reader = new FileReader(file);
-            JsonElement root = JsonParser.parseReader(reader);
-            reader.close();
-            songArray = root.getAsJsonArray();
+        long start_time = System.nanoTime();
+        long start_bytes = Utils.allocated_bytes();
+        try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(file)))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Song song = new Song();
+                SongInfo info = new SongInfo();
+                read_song(reader, song, info);
+                if (song.filename != null) {
+                    add_song(song, info);
+                }
+            }
+            reader.endArray();
         } catch (Exception exception) {
             System.err.println(file.toString() + ": " + exception);
+            // Do not keep a partial library, which would overwrite the file on exit.
+            clear();
+            this.is_changed = false;
             return false;
         }
-        Gson gson = new Gson();
-        for (JsonElement element : songArray) {
-            Song song = gson.fromJson(element, Song.class);
-            if (song.filename == null) {
-                continue;
+        report_load(file, start_time, start_bytes);
+        this.is_changed = false;
+        return true;
+    }
+
+    /**
+     * Read a song database from its binary snapshot, if the snapshot is up to date with the
+     * JSON file. If this returns false, then call load() to read the JSON file. Either way,
+     * save() will keep the snapshot up to date from now on.
+     */
+    public boolean load_snapshot(File directory, String filename, String snapshot_filename) {
+        this.directory = directory;
+        this.filename = filename;
+        this.snapshot_filename = snapshot_filename;
+        this.snapshot_is_stale = true;
+        File file = new File(directory, snapshot_filename);
+        long start_time = System.nanoTime();
+        long start_bytes = Utils.allocated_bytes();
+        try {
+            if (!DatabaseSnapshot.read(this, file, new File(directory, filename))) {
+                return false;
             }
-            SongInfo obj = gson.fromJson(element, SongInfo.class);
-            add_song(song, obj);
+        } catch (Exception exception) {
+            System.err.println(file.toString() + ": " + exception);
+            clear();
+            return false;
         }
+        report_load(file, start_time, start_bytes);
+        this.snapshot_is_stale = false;
         this.is_changed = false;
         return true;
     }
 
+    /**
+     * Use the lists that were read from a snapshot, and rebuild the maps from names to ids.
+     */
+    void restore(List<Artist> artist_list, List<Album> album_list, List<Song> song_list) {
+        this.artist_list = artist_list;
+        this.album_list = album_list;
+        this.song_list = song_list;
+        for (Artist artist : artist_list) {
+            if (artist.name != null) {
+                this.artist_index.putIfAbsent(artist.name, artist.id);
+            }
+        }
+        for (Album album : album_list) {
+            if (album.name != null) {
+                this.album_index.putIfAbsent(album_key(album.artistid, album.name), album.id);
+            }
+        }
+        for (Song song : song_list) {
+            if (song.filename != null) {
+                this.song_index.put(song.filename, song.id);
+            }
+        }
+    }
+
+    private void report_load(File file, long start_time, long start_bytes) {
+        long elapsed = (System.nanoTime() - start_time) / 1000000L;
+        long allocated = Utils.allocated_bytes() - start_bytes;
+        System.out.println(file.toString() + ": loaded " + (this.song_list.size() - 1) +
+                " songs in " + elapsed + " ms" +
+                (start_bytes < 0 ? "" : ", allocated " + (allocated >> 20) + " MB"));
+        System.out.println(file.toString() + ": " + this.strings.get_report());
+    }
+
+    /**
+     * Read one song object from the database file. The object contains the fields of both
+     * Song and SongInfo.
+     */
+    static void read_song(JsonReader reader, Song song, SongInfo info)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+            case "artist":
+                info.artist = reader.nextString();
+                break;
+            case "album":
+                info.album = reader.nextString();
+                break;
+            case "album_artist":
+                info.album_artist = reader.nextString();
+                break;
+            case "filename":
+                song.filename = reader.nextString();
+                break;
+            case "mtime":
+                song.mtime = reader.nextInt();
+                break;
+            case "size":
+                song.size = reader.nextLong();
+                break;
+            case "title":
+                song.title = reader.nextString();
+                break;
+            case "track_number":
+                song.track_number = reader.nextInt();
+                break;
+            case "year":
+                info.year = reader.nextInt();
+                break;
+            case "duration":
+                song.duration = reader.nextInt();
+                break;
+            case "bitrate":
+                info.bitrate = reader.nextString();
+                break;
+            case "bpm":
+                info.bpm = reader.nextString();
+                break;
+            case "id3":
+                info.id3 = reader.nextString();
+                break;
+            case "encoder":
+                info.encoder = reader.nextString();
+                break;
+            case "encoderVersion":
+                info.encoderVersion = reader.nextString();
+                break;
+            case "add_time":
+                info.add_time = reader.nextInt();
+                break;
+            case "tags":
+                song.tags = reader.nextString();
+                break;
+            case "hash":
+                song.hash = reader.nextString();
+                break;
+            default:
+                reader.skipValue();
+                break;
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Apply the changes in the journal to the loaded database, and then record every later
+     * change in the journal as it happens.
+     */
+    public void open_journal() {
+        DatabaseJournal journal =
+                new DatabaseJournal(new File(this.directory, this.filename + ".journal"));
+        // Replay the journal before this.journal is set, so replaying doesn't append to it.
+        boolean is_complete = journal.replay(this);
+        if (journal.size() > 0) {
+            System.out.println(this.filename + ": replayed " + journal.size() + " changes");
+        }
+        this.journal = journal;
+        try {
+            if (is_complete) {
+                this.journal.open();
+            } else {
+                // Do not append to a damaged journal. Start over with an empty one.
+                compact();
+            }
+        } catch (Exception exception) {
+            System.err.println(this.filename + ".journal: " + exception);
+            this.journal = null;
+        }
+    }
+
     public void add_song(Song song, SongInfo obj) {
         song.id = this.song_list.size();
+        set_song_keys(song);
+        set_columns(song, obj);
+        this.song_list.add(song);
+        this.song_index.put(song.filename, song.id);
+        add_song_to_album(song);
+        this.search_index.add_song(this, song);
+        this.is_changed = true;
+        journal_put(song);
+    }
+
+    /**
+     * Add the song to the database or, if the database already has a song with the same
+     * filename, then replace that song, keeping its id.
+     */
+    public void put_song(Song song, SongInfo obj) {
+        Integer songid = this.song_index.get(song.filename);
+        if (songid == null) {
+            add_song(song, obj);
+            return;
+        }
+        Song old_song = this.song_list.get(songid);
+        int old_albumid = this.columns.get_albumid(songid);
+        this.search_index.remove_song(this, old_song);
+        remove_song_from_album(old_song);
+        song.id = songid;
+        set_song_keys(song);
+        set_columns(song, obj);
+        this.song_list.set(song.id, song);
+        add_song_to_album(song);
+        // The song's year may have gone down, which get_albumid() never does.
+        set_album_year(this.album_list.get(old_albumid));
+        set_album_year(this.album_list.get(this.columns.get_albumid(songid)));
+        this.search_index.add_song(this, song);
+        this.is_changed = true;
+        journal_put(song);
+    }
+
+    /**
+     * Record that the caller changed some of the song's fields, other than its artist, album
+     * and year.
+     */
+    public void update_song(Song song) {
+        // The song's keys haven't been updated yet, so these are its old trigrams.
+        update_song(song, SearchIndex.get_song_grams(this, song));
+    }
+
+    /**
+     * Record that the caller changed some of the song's fields, which may include its artist,
+     * album and year. The caller must have already updated the song's ids, its columns and the
+     * album.
+     *
+     * @param old_info The song's info from get_song_info(), from before the caller changed it.
+     */
+    public void update_song(Song song, SongInfo old_info) {
+        String album_artist = old_info.album_artist != null ? old_info.album_artist :
+                old_info.artist;
+        Set<Long> old_grams = SearchIndex.get_grams(song.title_key, song.tags_key,
+                old_info.year, Utils.search_key(old_info.artist),
+                Utils.search_key(old_info.album), Utils.search_key(album_artist));
+        update_song(song, old_grams);
+    }
+
+    private void update_song(Song song, Set<Long> old_grams) {
+        set_song_keys(song);
+        this.search_index.update_song(this, song, old_grams);
+        this.is_changed = true;
+        journal_put(song);
+    }
+
+    /**
+     * Record the sizes of songs that were added before the database recorded file sizes.
+     * Rather than journaling every song, rewrite the database file once.
+     */
+    public void set_song_sizes(Map<Song, Long> song_sizes) {
+        if (song_sizes.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Song, Long> entry : song_sizes.entrySet()) {
+            entry.getKey().size = entry.getValue();
+        }
+        this.is_changed = true;
+        compact();
+    }
+
+    /**
+     * Set the song's derived fields, and share the strings that many songs have in common.
+     */
+    private void set_song_keys(Song song) {
+        StringDictionary strings = this.strings;
+        song.tags = strings.intern(song.tags);
+        song.title_key = Utils.search_key(song.title);
+        song.tags_key = strings.intern(Utils.search_key(song.tags));
+    }
+
+    /**
+     * Set the song's artist, and its album, year, add time, bitrate, bpm and encoder in the
+     * columns.
+     */
+    private void set_columns(Song song, SongInfo obj) {
         song.artistid = get_artistid(obj.artist);
         int artistid = get_artistid(obj.album_artist);
         if (artistid == 0) {
             artistid = song.artistid;
         }
-        song.albumid = get_albumid(obj.album, artistid, song.year);
-        this.song_list.add(song);
-        add_song_to_album(song);
-        this.is_changed = true;
+        this.columns.set_albumid(song.id, get_albumid(obj.album, artistid, obj.year));
+        this.columns.set_year(song.id, obj.year);
+        this.columns.set_add_time(song.id, obj.add_time);
+        this.columns.set_tags(song.id, obj);
     }
 
     /**
@@ -88,16 +411,16 @@ public class Database {
         if (name == null) {
             return 0;
         }
-        int num_artists = this.artist_list.size();
-        for (int idx = 1; idx < num_artists; idx++) {
-            if (this.artist_list.get(idx).name.equals(name)) {
-                return idx;
-            }
+        Integer artistid = this.artist_index.get(name);
+        if (artistid != null) {
+            return artistid;
         }
         Artist artist = new Artist();
-        artist.id = num_artists;
+        artist.id = this.artist_list.size();
         artist.name = name;
+        artist.key = Utils.search_key(name);
         this.artist_list.add(artist);
+        this.artist_index.put(name, artist.id);
         return artist.id;
     }
 
@@ -109,30 +432,103 @@ public class Database {
         if (name == null) {
             name = "";
         }
-        int num_albums = this.album_list.size();
-        for (int idx = 1; idx < num_albums; idx++) {
-            Album album = this.album_list.get(idx);
-            if ((album.artistid == artistid) && album.name.equals(name)) {
-                if (year > album.year) {
-                    album.year = year;
-                }
-                return idx;
+        String key = album_key(artistid, name);
+        Integer albumid = this.album_index.get(key);
+        if (albumid != null) {
+            Album album = this.album_list.get(albumid);
+            if (year > album.year) {
+                album.year = year;
             }
+            return albumid;
         }
         Album album = new Album();
-        album.id = num_albums;
+        album.id = this.album_list.size();
         album.name = name;
+        album.key = Utils.search_key(name);
         album.artistid = artistid;
         album.year = year;
         this.album_list.add(album);
+        this.album_index.put(key, album.id);
         return album.id;
     }
 
+    /**
+     * Change the album's name and artist, and keep the album index in sync.
+     */
+    public void rename_album(int albumid, String name, int artistid) {
+        Album album = this.album_list.get(albumid);
+        List<Set<Long>> old_grams = new ArrayList<>();
+        for (int songid : album.song_list) {
+            old_grams.add(SearchIndex.get_song_grams(this, this.song_list.get(songid)));
+        }
+        unindex_album(album);
+        album.name = name;
+        album.key = Utils.search_key(name);
+        album.artistid = artistid;
+        // If another album already has this name and artist, then the index keeps pointing at
+        // that album. The two albums are not merged.
+        this.album_index.putIfAbsent(album_key(artistid, name), albumid);
+        for (int idx = 0; idx < album.song_list.length; idx++) {
+            Song song = this.song_list.get(album.song_list[idx]);
+            this.search_index.update_song(this, song, old_grams.get(idx));
+        }
+        this.is_changed = true;
+    }
+
+    private void unindex_album(Album album) {
+        String key = album_key(album.artistid, album.name);
+        Integer indexed = this.album_index.get(key);
+        if (indexed != null && indexed == album.id) {
+            this.album_index.remove(key);
+        }
+    }
+
+    private static String album_key(int artistid, String name) {
+        return artistid + "/" + name;
+    }
+
+    /**
+     * Remove the song from its album's list of songs. If that leaves the album empty, then
+     * remove the album too.
+     */
+    private void remove_song_from_album(Song song) {
+        Album album = this.album_list.get(this.columns.get_albumid(song.id));
+        if (album.song_list == null) {
+            return;
+        }
+        IntList new_list = new IntList();
+        for (int songid : album.song_list) {
+            if (songid != song.id) {
+                new_list.add(songid);
+            }
+        }
+        if (new_list.size() > 0) {
+            album.song_list = new_list.finish();
+        } else {
+            unindex_album(album);
+            this.album_list.set(album.id, new Album());
+        }
+    }
+
+    /**
+     * Set the album's year to the year of its newest song.
+     */
+    private void set_album_year(Album album) {
+        if (album.song_list == null) {
+            return;
+        }
+        int year = 0;
+        for (int songid : album.song_list) {
+            year = Math.max(year, this.columns.get_year(songid));
+        }
+        album.year = year;
+    }
+
     /**
      * Insertion sort song into album's list of songs.
      */
     private void add_song_to_album(Song song) {
-        Album album = this.album_list.get(song.albumid);
+        Album album = this.album_list.get(this.columns.get_albumid(song.id));
         int size = album.song_list == null ? 0 : album.song_list.length;
         int[] new_list = new int[size + 1];
         if (size > 0) {
@@ -151,54 +547,266 @@ public class Database {
     }
 
     /**
-     * Overwrite the database file with the current contents of the database.
+     * Make sure every change to the database is on disk. Normally, the changes are already in
+     * the journal, and the database file is only rewritten when the journal gets long. If we
+     * have a snapshot file, then bring it up to date too.
      */
     public void save() {
-        if (!this.is_changed) {
+        if (this.is_changed && (this.journal == null || this.journal.size() >= JOURNAL_LIMIT)) {
+            compact();
+        }
+        save_snapshot();
+        if (this.journal != null) {
+            this.journal.close();
+        }
+    }
+
+    /**
+     * Overwrite the database file with the current contents of the database, and empty the
+     * journal.
+     */
+    private void compact() {
+        if (!save_json()) {
             return;
         }
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        JsonArray songArray = new JsonArray();
-        for (Song song : this.song_list) {
-            if (song.filename == null) {
-                continue;
+        this.snapshot_is_stale = true;
+        if (this.journal != null) {
+            try {
+                this.journal.truncate();
+            } catch (Exception exception) {
+                System.err.println(this.filename + ".journal: " + exception);
+                this.journal = null;
             }
-            SongInfo info = new SongInfo();
-            info.artist = this.artist_list.get(song.artistid).name;
-            info.album = this.album_list.get(song.albumid).name;
-            int artistid = this.album_list.get(song.albumid).artistid;
-            if ((artistid > 0) && (artistid != song.artistid)) {
-                info.album_artist = this.artist_list.get(artistid).name;
+        }
+    }
+
+    private void save_snapshot() {
+        if (this.snapshot_filename != null && this.snapshot_is_stale) {
+            File file = new File(this.directory, this.snapshot_filename);
+            try {
+                DatabaseSnapshot.write(this, file, new File(this.directory, this.filename));
+                this.snapshot_is_stale = false;
+            } catch (Exception exception) {
+                System.err.println(file.toString() + ": " + exception);
             }
-            JsonObject obj1 = gson.toJsonTree(info, SongInfo.class).getAsJsonObject();
-            JsonObject obj2 = gson.toJsonTree(song, Song.class).getAsJsonObject();
-            for (Map.Entry<String, JsonElement> entry : obj2.entrySet()) {
-                if (!entry.getKey().endsWith("id")) {
-                    obj1.add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void journal_put(Song song) {
+        if (this.journal == null) {
+            return;
+        }
+        try {
+            this.journal.put(this, song);
+        } catch (Exception exception) {
+            journal_failed(exception);
+            return;
+        }
+    }
+
+    /**
+     * Rewrite the database file if the journal has grown too long. This iterates over every
+     * song, so call it from the UI thread, after a batch of changes.
+     */
+    public void checkpoint() {
+        if (this.journal != null && this.journal.size() >= JOURNAL_LIMIT) {
+            compact();
+        }
+    }
+
+    private void journal_delete(String filename) {
+        if (this.journal == null) {
+            return;
+        }
+        try {
+            this.journal.delete(filename);
+        } catch (Exception exception) {
+            journal_failed(exception);
+        }
+    }
+
+    /**
+     * If we can't write the journal, then stop using it, and rewrite the whole database file
+     * on exit instead.
+     */
+    private void journal_failed(Exception exception) {
+        System.err.println(this.filename + ".journal: " + exception);
+        this.journal.close();
+        this.journal = null;
+    }
+
+    /**
+     * Write to a temporary file, force it to the disk, and then rename it, so a crash never
+     * leaves a truncated database.
+     */
+    private boolean save_json() {
+        File file = new File(this.directory, this.filename);
+        File tmpfile = new File(this.directory, this.filename + ".tmp");
+        try (FileOutputStream ostream = new FileOutputStream(tmpfile);
+             JsonWriter writer = new JsonWriter(
+                     new BufferedWriter(new OutputStreamWriter(ostream)))) {
+            // Escape HTML characters, the way Gson.toJson() does.
+            writer.setHtmlSafe(true);
+            writer.setIndent("  ");
+            writer.beginArray();
+            for (Song song : this.song_list) {
+                if (song.filename != null) {
+                    write_song(writer, song);
                 }
             }
-            songArray.add(obj1);
+            writer.endArray();
+            writer.flush();
+            ostream.getChannel().force(true);
+        } catch (Exception exception) {
+            System.err.println(tmpfile.toString() + ": " + exception);
+            tmpfile.delete();
+            return false;
         }
-        String text = gson.toJson(songArray);
-        File file = new File(this.directory, this.filename);
-        FileWriter writer = null;
         try {
-            writer = new FileWriter(file);
-            writer.write(text);
-            writer.close();
+            Utils.replace_file(tmpfile, file);
             this.is_changed = false;
+            return true;
         } catch (Exception exception) {
             System.err.println(file.toString() + ": " + exception);
+            return false;
+        }
+    }
+
+    /**
+     * Write one song object to the database file. The object contains the fields of both
+     * Song and SongInfo, but not the ids, which are only valid until the next load.
+     */
+    void write_song(JsonWriter writer, Song song) throws IOException {
+        SongInfo info = get_song_info(song);
+        writer.beginObject();
+        write_string(writer, "artist", info.artist);
+        write_string(writer, "album", info.album);
+        write_string(writer, "album_artist", info.album_artist);
+        write_string(writer, "filename", song.filename);
+        writer.name("mtime").value(song.mtime);
+        if (song.size > 0) {
+            writer.name("size").value(song.size);
+        }
+        write_string(writer, "title", song.title);
+        writer.name("track_number").value(song.track_number);
+        writer.name("year").value(info.year);
+        writer.name("duration").value(song.duration);
+        write_string(writer, "bitrate", info.bitrate);
+        write_string(writer, "bpm", info.bpm);
+        write_string(writer, "id3", info.id3);
+        write_string(writer, "encoder", info.encoder);
+        write_string(writer, "encoderVersion", info.encoderVersion);
+        writer.name("add_time").value(info.add_time);
+        write_string(writer, "tags", song.tags);
+        write_string(writer, "hash", song.hash);
+        writer.endObject();
+    }
+
+    /**
+     * @return the song's artist and album names, as they would be read from the mp3 file, and
+     *         its year, add time, bitrate, bpm and encoder.
+     */
+    public SongInfo get_song_info(Song song) {
+        SongInfo info = new SongInfo();
+        Album album = this.album_list.get(this.columns.get_albumid(song.id));
+        info.artist = this.artist_list.get(song.artistid).name;
+        info.album = album.name;
+        if ((album.artistid > 0) && (album.artistid != song.artistid)) {
+            info.album_artist = this.artist_list.get(album.artistid).name;
+        }
+        info.year = this.columns.get_year(song.id);
+        info.add_time = this.columns.get_add_time(song.id);
+        this.columns.get_tags(song.id, info);
+        return info;
+    }
+
+    private static void write_string(JsonWriter writer, String name, String value)
+            throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
         }
-        Utils.quietClose(writer);
     }
 
     public void delete_album(int albumid) {
         Album album = this.album_list.get(albumid);
+        unindex_album(album);
         for (int songid : album.song_list) {
+            Song song = this.song_list.get(songid);
+            this.search_index.remove_song(this, song);
+            this.song_index.remove(song.filename);
             this.song_list.set(songid, new Song());
+            this.columns.remove(songid);
+            journal_delete(song.filename);
         }
         this.album_list.set(albumid, new Album());
         this.is_changed = true;
     }
+
+    /**
+     * @return the top-level folders, relative to the home directory, that hold the songs, such
+     *         as "Music/".
+     */
+    public Set<String> get_top_folders() {
+        Set<String> folders = new TreeSet<>();
+        for (Song song : this.song_list) {
+            if (song.filename != null) {
+                int idx = song.filename.indexOf('/');
+                if (idx > 0) {
+                    folders.add(song.filename.substring(0, idx + 1));
+                }
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * @return the song with the given filename, or null if it is not in the database.
+     */
+    public Song find_song(String filename) {
+        Integer songid = this.song_index.get(filename);
+        return songid == null ? null : this.song_list.get(songid);
+    }
+
+    /**
+     * @return the songs whose files are in the given folder or its subfolders.
+     */
+    public List<Song> find_songs_in_folder(String folder) {
+        // Every filename that starts with "folder/" sorts before "folder0".
+        List<Song> songs = new ArrayList<>();
+        for (int songid : this.song_index.subMap(folder + "/", folder + "0").values()) {
+            songs.add(this.song_list.get(songid));
+        }
+        return songs;
+    }
+
+    /**
+     * Record that the song's file has moved. The song keeps its id, so it stays in the same
+     * playlists.
+     */
+    public void rename_song(Song song, String filename) {
+        String old_filename = song.filename;
+        this.song_index.remove(old_filename);
+        song.filename = filename;
+        this.song_index.put(filename, song.id);
+        this.is_changed = true;
+        journal_delete(old_filename);
+        journal_put(song);
+    }
+
+    /**
+     * Remove the song with the given filename from the database.
+     */
+    public void delete_song(String filename) {
+        Integer songid = this.song_index.remove(filename);
+        if (songid == null) {
+            return;
+        }
+        Song song = this.song_list.get(songid);
+        this.search_index.remove_song(this, song);
+        remove_song_from_album(song);
+        this.song_list.set(songid, new Song());
+        this.columns.remove(songid);
+        this.is_changed = true;
+        journal_delete(filename);
+    }
 }
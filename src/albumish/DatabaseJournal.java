@@ -0,0 +1,134 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * An append-only log of the changes made to the song database since the database file was
+ * last written. Each line of the journal is one JSON object:
+ *
+ * {"put": {song}} adds the song, or replaces the song with the same filename.
+ * {"delete": "filename"} removes the song with the given filename.
+ *
+ * The song objects have the same fields as the objects in the database file. The journal never
+ * refers to song ids, because the ids change every time the database file is written.
+ */
+public class DatabaseJournal {
+
+    private final File file;
+    private Writer writer;
+    private int count;
+
+    public DatabaseJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Apply every record in the journal to the database.
+     *
+     * @return false if the journal ends with a damaged record, which happens if we crashed while
+     *         writing it. The records before the damaged one are still applied.
+     */
+    public boolean replay(Database database) {
+        this.count = 0;
+        if (this.file.length() == 0) {
+            return true;
+        }
+        try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(this.file)))) {
+            reader.setLenient(true);
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                reader.beginObject();
+                String op = reader.nextName();
+                if (op.equals("put")) {
+                    Song song = new Song();
+                    SongInfo info = new SongInfo();
+                    Database.read_song(reader, song, info);
+                    if (song.filename != null) {
+                        database.put_song(song, info);
+                    }
+                } else if (op.equals("delete")) {
+                    database.delete_song(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+                reader.endObject();
+                this.count++;
+            }
+        } catch (Exception exception) {
+            System.err.println(this.file.toString() + ": " + exception);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Open the journal to append new records after the existing ones.
+     */
+    public void open() throws IOException {
+        this.writer = new BufferedWriter(new FileWriter(this.file, true));
+    }
+
+    public synchronized void put(Database database, Song song) throws IOException {
+        JsonWriter record = new JsonWriter(this.writer);
+        record.beginObject();
+        record.name("put");
+        database.write_song(record, song);
+        record.endObject();
+        finish_record();
+    }
+
+    public synchronized void delete(String filename) throws IOException {
+        JsonWriter record = new JsonWriter(this.writer);
+        record.beginObject();
+        record.name("delete").value(filename);
+        record.endObject();
+        finish_record();
+    }
+
+    /**
+     * End the record with a newline, and hand it to the operating system, so the record
+     * survives if we crash.
+     */
+    private void finish_record() throws IOException {
+        this.writer.write('\n');
+        this.writer.flush();
+        this.count++;
+    }
+
+    /**
+     * @return the number of records in the journal.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Remove every record from the journal, after the database file has been rewritten.
+     */
+    public synchronized void truncate() throws IOException {
+        close();
+        this.writer = new BufferedWriter(new FileWriter(this.file));
+        this.count = 0;
+    }
+
+    public void close() {
+        Utils.quietClose(this.writer);
+        this.writer = null;
+    }
+}
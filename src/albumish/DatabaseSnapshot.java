@@ -0,0 +1,347 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary copy of the song database, which loads much faster than the JSON file.
+ *
+ * The snapshot holds one table of distinct strings, followed by one column per song field, the
+ * artists, the albums with their lists of songs, and the search index. String fields are stored
+ * as indexes into the string table, and numeric fields are stored as plain ints, except for the
+ * file sizes, which are longs. Loading restores the lists and indexes as they were saved, so no
+ * song is added to the database one at a time. The songs are renumbered without the ones that
+ * were deleted, but the artists and albums keep their ids.
+ *
+ * The header records the length and modification time of the JSON file that the snapshot was
+ * made from. If the JSON file has changed since then, the snapshot is stale.
+ */
+public class DatabaseSnapshot {
+
+    private static final int MAGIC = 0x414c4253;
+    private static final int VERSION = 3;
+
+    // The string columns of each song, in the order they are stored in the file.
+    private static final int FILENAME = 0;
+    private static final int TITLE = 1;
+    private static final int BITRATE = 2;
+    private static final int BPM = 3;
+    private static final int ID3 = 4;
+    private static final int ENCODER = 5;
+    private static final int ENCODER_VERSION = 6;
+    private static final int TAGS = 7;
+    private static final int HASH = 8;
+    private static final int TITLE_KEY = 9;
+    private static final int TAGS_KEY = 10;
+    private static final int NUM_STRING_COLUMNS = 11;
+
+    // The int columns of each song.
+    private static final int MTIME = 0;
+    private static final int TRACK_NUMBER = 1;
+    private static final int YEAR = 2;
+    private static final int DURATION = 3;
+    private static final int ADD_TIME = 4;
+    private static final int ARTISTID = 5;
+    private static final int ALBUMID = 6;
+    private static final int NUM_INT_COLUMNS = 7;
+
+    /**
+     * Write every song in the database to the snapshot file.
+     *
+     * @param json_file The database file that the snapshot is a copy of.
+     */
+    public static void write(Database database, File file, File json_file) throws IOException {
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> string_map = new HashMap<>();
+        List<Song> songs = new ArrayList<>();
+        // The songs' ids in the snapshot, indexed by their ids in the database.
+        int[] new_ids = new int[database.song_list.size()];
+        for (Song song : database.song_list) {
+            if (song.filename != null) {
+                songs.add(song);
+                new_ids[song.id] = songs.size();
+            }
+        }
+        int num_songs = songs.size();
+        int[][] string_columns = new int[NUM_STRING_COLUMNS][num_songs];
+        int[][] int_columns = new int[NUM_INT_COLUMNS][num_songs];
+        long[] sizes = new long[num_songs];
+        SongColumns columns = database.columns;
+        SongInfo info = new SongInfo();
+        for (int idx = 0; idx < num_songs; idx++) {
+            Song song = songs.get(idx);
+            columns.get_tags(song.id, info);
+            String[] values = {
+                    song.filename, song.title, info.bitrate, info.bpm, info.id3, info.encoder,
+                    info.encoderVersion, song.tags, song.hash, song.title_key, song.tags_key
+            };
+            for (int column = 0; column < NUM_STRING_COLUMNS; column++) {
+                string_columns[column][idx] = intern(values[column], strings, string_map);
+            }
+            int_columns[MTIME][idx] = song.mtime;
+            int_columns[TRACK_NUMBER][idx] = song.track_number;
+            int_columns[YEAR][idx] = columns.get_year(song.id);
+            int_columns[DURATION][idx] = song.duration;
+            int_columns[ADD_TIME][idx] = columns.get_add_time(song.id);
+            int_columns[ARTISTID][idx] = song.artistid;
+            int_columns[ALBUMID][idx] = columns.get_albumid(song.id);
+            sizes[idx] = song.size;
+        }
+        int[] artist_names = new int[database.artist_list.size()];
+        for (Artist artist : database.artist_list) {
+            artist_names[artist.id] = intern(artist.name, strings, string_map);
+        }
+        int[] album_names = new int[database.album_list.size()];
+        for (int albumid = 0; albumid < album_names.length; albumid++) {
+            Album album = database.album_list.get(albumid);
+            album_names[albumid] = intern(album.name, strings, string_map);
+        }
+
+        File tmpfile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream ostream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpfile)))) {
+            ostream.writeInt(MAGIC);
+            ostream.writeInt(VERSION);
+            ostream.writeLong(json_file.length());
+            ostream.writeLong(json_file.lastModified());
+            ostream.writeInt(strings.size());
+            for (String text : strings) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                ostream.writeInt(bytes.length);
+                ostream.write(bytes);
+            }
+            ostream.writeInt(num_songs);
+            for (int[] column : string_columns) {
+                for (int value : column) {
+                    ostream.writeInt(value);
+                }
+            }
+            for (int[] column : int_columns) {
+                for (int value : column) {
+                    ostream.writeInt(value);
+                }
+            }
+            for (long value : sizes) {
+                ostream.writeLong(value);
+            }
+            ostream.writeInt(artist_names.length);
+            for (int value : artist_names) {
+                ostream.writeInt(value);
+            }
+            ostream.writeInt(album_names.length);
+            for (int albumid = 0; albumid < album_names.length; albumid++) {
+                Album album = database.album_list.get(albumid);
+                ostream.writeInt(album_names[albumid]);
+                ostream.writeInt(album.artistid);
+                ostream.writeInt(album.year);
+                write_songids(ostream, album.song_list, new_ids);
+            }
+            Map<Long, int[]> postings = database.search_index.get_postings();
+            ostream.writeInt(postings.size());
+            for (Map.Entry<Long, int[]> entry : postings.entrySet()) {
+                ostream.writeLong(entry.getKey());
+                write_songids(ostream, entry.getValue(), new_ids);
+            }
+        } catch (IOException exception) {
+            tmpfile.delete();
+            throw exception;
+        }
+        Utils.replace_file(tmpfile, file);
+    }
+
+    private static int intern(String text, List<String> strings, Map<String, Integer> map) {
+        if (text == null) {
+            return -1;
+        }
+        Integer idx = map.get(text);
+        if (idx == null) {
+            idx = strings.size();
+            strings.add(text);
+            map.put(text, idx);
+        }
+        return idx;
+    }
+
+    /**
+     * Write the number of songs, followed by their ids in the snapshot. The ids stay in the
+     * same order, since the songs are renumbered in order.
+     */
+    private static void write_songids(DataOutputStream ostream, int[] songids, int[] new_ids)
+            throws IOException {
+        int count = 0;
+        if (songids != null) {
+            for (int songid : songids) {
+                if (new_ids[songid] > 0) {
+                    count++;
+                }
+            }
+        }
+        ostream.writeInt(count);
+        for (int idx = 0; count > 0; idx++) {
+            if (new_ids[songids[idx]] > 0) {
+                ostream.writeInt(new_ids[songids[idx]]);
+                count--;
+            }
+        }
+    }
+
+    /**
+     * Restore the database from the snapshot file.
+     *
+     * @return false if the snapshot does not exist or is stale. In that case, the database is
+     *         not modified.
+     */
+    public static boolean read(Database database, File file, File json_file) throws IOException {
+        if (!file.exists() || !json_file.exists()) {
+            return false;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return false;
+        }
+        if (buffer.getLong() != json_file.length() ||
+                buffer.getLong() != json_file.lastModified()) {
+            return false;
+        }
+        String[] strings = new String[buffer.getInt()];
+        for (int idx = 0; idx < strings.length; idx++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[idx] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        int num_songs = buffer.getInt();
+        int[][] string_columns = new int[NUM_STRING_COLUMNS][num_songs];
+        for (int[] column : string_columns) {
+            read_ints(buffer, column);
+        }
+        int[][] int_columns = new int[NUM_INT_COLUMNS][num_songs];
+        for (int[] column : int_columns) {
+            read_ints(buffer, column);
+        }
+        long[] sizes = new long[num_songs];
+        buffer.asLongBuffer().get(sizes);
+        buffer.position(buffer.position() + 8 * num_songs);
+
+        List<Artist> artist_list = new ArrayList<>();
+        int num_artists = buffer.getInt();
+        for (int artistid = 0; artistid < num_artists; artistid++) {
+            String name = get(strings, buffer.getInt());
+            Artist artist = new Artist();
+            if (name != null) {
+                artist.id = artistid;
+                artist.name = name;
+                artist.key = Utils.search_key(name);
+            }
+            artist_list.add(artist);
+        }
+        List<Album> album_list = new ArrayList<>();
+        int num_albums = buffer.getInt();
+        for (int albumid = 0; albumid < num_albums; albumid++) {
+            String name = get(strings, buffer.getInt());
+            Album album = new Album();
+            album.artistid = buffer.getInt();
+            album.year = buffer.getInt();
+            album.song_list = read_songids(buffer);
+            if (name != null) {
+                album.id = albumid;
+                album.name = name;
+                album.key = Utils.search_key(name);
+            } else {
+                // An album that was deleted, or album #0.
+                album = new Album();
+            }
+            album_list.add(album);
+        }
+
+        // Share the strings that many songs have in common with the songs added later.
+        String[] shared = new String[strings.length];
+        List<Song> song_list = new ArrayList<>(num_songs + 1);
+        song_list.add(new Song());
+        SongColumns columns = database.columns;
+        SongInfo info = new SongInfo();
+        for (int idx = 0; idx < num_songs; idx++) {
+            Song song = new Song();
+            song.id = idx + 1;
+            song.filename = get(strings, string_columns[FILENAME][idx]);
+            song.title = get(strings, string_columns[TITLE][idx]);
+            info.bitrate = get(strings, string_columns[BITRATE][idx]);
+            info.bpm = get(strings, string_columns[BPM][idx]);
+            info.id3 = get(strings, string_columns[ID3][idx]);
+            info.encoder = get(strings, string_columns[ENCODER][idx]);
+            info.encoderVersion = get(strings, string_columns[ENCODER_VERSION][idx]);
+            song.tags = get_shared(database, strings, shared, string_columns[TAGS][idx]);
+            song.hash = get(strings, string_columns[HASH][idx]);
+            song.title_key = get(strings, string_columns[TITLE_KEY][idx]);
+            song.tags_key = get_shared(database, strings, shared, string_columns[TAGS_KEY][idx]);
+            song.mtime = int_columns[MTIME][idx];
+            song.track_number = int_columns[TRACK_NUMBER][idx];
+            song.duration = int_columns[DURATION][idx];
+            song.artistid = int_columns[ARTISTID][idx];
+            song.size = sizes[idx];
+            columns.set_albumid(song.id, int_columns[ALBUMID][idx]);
+            columns.set_year(song.id, int_columns[YEAR][idx]);
+            columns.set_add_time(song.id, int_columns[ADD_TIME][idx]);
+            columns.set_tags(song.id, info);
+            song_list.add(song);
+        }
+
+        int num_grams = buffer.getInt();
+        for (int idx = 0; idx < num_grams; idx++) {
+            long gram = buffer.getLong();
+            database.search_index.put_postings(gram, new IntList(read_songids(buffer)));
+        }
+        database.restore(artist_list, album_list, song_list);
+        return true;
+    }
+
+    private static void read_ints(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    private static int[] read_songids(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count == 0) {
+            return null;
+        }
+        int[] songids = new int[count];
+        read_ints(buffer, songids);
+        return songids;
+    }
+
+    private static String get(String[] strings, int idx) {
+        return idx < 0 ? null : strings[idx];
+    }
+
+    private static String get_shared(Database database, String[] strings, String[] shared,
+                                     int idx) {
+        if (idx < 0) {
+            return null;
+        }
+        if (shared[idx] == null) {
+            shared[idx] = database.strings.intern(strings[idx]);
+        }
+        return shared[idx];
+    }
+}
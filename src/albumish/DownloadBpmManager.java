@@ -111,11 +111,23 @@ import java.util.List;
         });
     }
 
-    private void update_row(final int found) {
+    /**
+     * Save the downloaded bpm values in the database, and then update the album's row. The
+     * database is only changed in the UI thread.
+     */
+    private void save_bpm_data(final Album album, final Map<Integer, String> bpm_map) {
         final Table table = this.table;
         this.jukebox.main_window.getDisplay().asyncExec(() -> {
+            for (Map.Entry<Integer, String> entry : bpm_map.entrySet()) {
+                Song song = this.database.song_list.get(entry.getKey());
+                if (song.filename != null) {
+                    this.database.columns.set_bpm(song.id, entry.getValue());
+                    this.database.update_song(song);
+                }
+            }
+            this.database.checkpoint();
             TableItem item = table.getItem(table.getItemCount()-1);
-            item.setText(1, Integer.toString(found));
+            item.setText(1, Integer.toString(count_bpm_songs(album)));
         });
     }
 
@@ -198,19 +210,18 @@ import java.util.List;
             }
             Map<String, String> recordings = get_recordings(release_id);
             String[] recording_ids = get_song_ids(album, recordings);
+            Map<Integer, String> bpm_map = new HashMap<>();
             for (int idx = 0; idx < recording_ids.length; idx++) {
                 String recording_id = recording_ids[idx];
                 if (recording_id != null) {
                     String bpm = get_recording_bpm(recording_id);
                     System.out.println(bpm);
                     if (bpm != null) {
-                        int songid = album.song_list[idx];
-                        this.database.song_list.get(songid).bpm = bpm;
-                        this.database.is_changed = true;
+                        bpm_map.put(album.song_list[idx], bpm);
                     }
                 }
             }
-            update_row(count_bpm_songs(album));
+            save_bpm_data(album, bpm_map);
         }
         update_window_done();
     }
@@ -218,8 +229,7 @@ import java.util.List;
     private int count_bpm_songs(Album album) {
         int count = 0;
         for (int songid : album.song_list) {
-            Song song = this.database.song_list.get(songid);
-            if (song.bpm != null) {
+            if (!Double.isNaN(this.database.columns.get_bpm(songid))) {
                 count++;
             }
         }
@@ -138,15 +138,16 @@ public class EditTagsDialog implements SelectionListener {
         boolean initialized = false;
         for (int songid : album.song_list) {
             Song song = database.song_list.get(songid);
+            int song_year = database.columns.get_year(songid);
             if (!initialized) {
                 artistid = song.artistid;
-                year = song.year;
+                year = song_year;
                 initialized = true;
             } else {
                 if (song.artistid != artistid) {
                     artistid = 0;
                 }
-                if (song.year != year) {
+                if (song_year != year) {
                     year = 0;
                 }
             }
@@ -227,11 +228,12 @@ public class EditTagsDialog implements SelectionListener {
         } catch (Exception ignore) {
         }
         Album album = database.album_list.get(this.albumid);
+        String album_name = album.name;
         if (new_album != null && !new_album.isEmpty()) {
             if (new_album.equals(album.name)) {
                 new_album = null;
             } else {
-                album.name = new_album;
+                album_name = new_album;
             }
         }
         if (year > 0) {
@@ -239,8 +241,9 @@ public class EditTagsDialog implements SelectionListener {
         }
         // To correctly update the database, we would need to know if the MP3
         // file has an album_artist tag. Assume it does not.
-        if (artistid > 0) {
-            album.artistid = artistid;
+        int album_artistid = (artistid > 0 ? artistid : album.artistid);
+        if (album_name != album.name || album_artistid != album.artistid) {
+            database.rename_album(this.albumid, album_name, album_artistid);
         }
         for (int songid : album.song_list) {
             Song song = database.song_list.get(songid);
@@ -277,18 +280,19 @@ public class EditTagsDialog implements SelectionListener {
                         audio.commit();
                     }
                     // After successfully writing mp3 file, update database.
+                    SongInfo old_info = database.get_song_info(song);
                     if (year > 0) {
-                        song.year = year;
+                        database.columns.set_year(song.id, year);
                     }
                     if (artistid > 0) {
                         song.artistid = artistid;
                     }
+                    database.update_song(song, old_info);
                 } catch (Exception exception) {
                     System.err.println(exception.toString());
                 }
             }
         }
-        database.is_changed = true;
         if (this.artwork != null) {
             this.jukebox.gallery.invalidate(this.albumid);
         }
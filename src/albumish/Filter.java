@@ -3,9 +3,11 @@ package albumish;
 public class Filter {
     public int fid;
     public String text;
+    public Query query;
 
     public Filter(int fid, String text) {
         this.fid = fid;
         this.text = text;
+        this.query = Query.compile(text);
     }
 }
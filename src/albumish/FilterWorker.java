@@ -7,173 +7,323 @@
  */
 package albumish;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class FilterWorker {
 
+    // How many albums to check between checks for a newer request.
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+    // Libraries with fewer albums than this are checked in one thread.
+    private static final int PARALLEL_THRESHOLD = 4096;
+    // How many albums each thread checks at a time.
+    private static final int PARALLEL_CHUNK_SIZE = 1024;
+
     private Database database;
     private CheckDatabase check_database;
-    private List<Filter> filter_list;
+    // The list is never modified. Adding or removing a filter replaces it, so the background
+    // thread can keep using the list that it started with.
+    private volatile List<Filter> filter_list;
+    private final AtomicInteger generation;
+    // The generation of the last album list that was published.
+    private volatile int published;
+    private final ExecutorService executor;
 
     public FilterWorker(Database database, CheckDatabase check_database) {
         this.database = database;
         this.check_database = check_database;
-        this.filter_list = new LinkedList<>();
+        this.filter_list = Collections.emptyList();
+        this.generation = new AtomicInteger();
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FilterWorker");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * Add the given filter and update the displayed albums.
+     * Add the given filter, or replace the filter with the same fid.
      */
-    public int[] add_filter(Filter filter) {
+    public void add_filter(Filter filter) {
+        List<Filter> new_list = new ArrayList<>();
         boolean found = false;
-        ListIterator<Filter> iterator = this.filter_list.listIterator(0);
-        while (iterator.hasNext()) {
-            Filter current = iterator.next();
+        for (Filter current : this.filter_list) {
             if (current.fid == filter.fid) {
-                iterator.set(filter);
+                new_list.add(filter);
                 found = true;
-                break;
+            } else {
+                new_list.add(current);
             }
         }
         if (!found) {
-            this.filter_list.add(filter);
+            new_list.add(filter);
         }
-        return generate_album_list();
+        this.filter_list = Collections.unmodifiableList(new_list);
     }
 
     /**
-     * Remove the given filter and update the displayed albums.
+     * Remove the given filter.
      */
-    public int[] remove_filter(int fid) {
-        Iterator<Filter> iterator = this.filter_list.iterator();
-        while (iterator.hasNext()) {
-            Filter filter = iterator.next();
-            if (filter.fid == fid) {
-                iterator.remove();
-                break;
+    public void remove_filter(int fid) {
+        List<Filter> new_list = new ArrayList<>();
+        for (Filter current : this.filter_list) {
+            if (current.fid != fid) {
+                new_list.add(current);
             }
         }
-        return generate_album_list();
+        this.filter_list = Collections.unmodifiableList(new_list);
     }
 
     /**
-     * For each album in the database, if the album contains at least one song that matches all
-     * filters, then add the album to the given list.
+     * Generate the album list in a background thread. When it is done, use the publisher to
+     * pass it to the callback, such as Display.asyncExec() to pass it to the UI thread. If this
+     * is called again before the album list is published, then the older request is cancelled,
+     * and only the newest album list is published.
+     *
+     * Call this from the UI thread, which is the only thread that changes the database. The
+     * background thread reads a copy of the database's lists, made here.
      */
-    public int[] generate_album_list() {
-        IntList album_list = new IntList();
-        IntList song_list = new IntList();
-        int size = this.database.album_list.size();
-        for (int idx = 1; idx < size; idx++) {
-            Album album = this.database.album_list.get(idx);
-            if (generate_song_list(album, song_list, false)) {
-                album_list.add(album.id);
+    public void generate_album_list_async(final Executor publisher,
+                                          final Consumer<int[]> callback) {
+        final int request = this.generation.incrementAndGet();
+        final Database copy = this.database.copy_lists();
+        this.executor.execute(() -> {
+            int[] album_list = generate_album_list(copy, request);
+            if (album_list == null) {
+                return;
             }
-        }
-        return album_list.finish();
+            publisher.execute(() -> {
+                if (!is_cancelled(request)) {
+                    this.published = request;
+                    callback.accept(album_list);
+                }
+            });
+        });
     }
 
     /**
-     * For each song on the album, if the song matches all filters, then add it to the given list.
+     * @return true if the newest request from generate_album_list_async() hasn't been
+     *         published yet.
+     */
+    public boolean is_pending() {
+        return this.published != this.generation.get();
+    }
+
+    private boolean is_cancelled(int request) {
+        return request != this.generation.get();
+    }
+
+    /**
+     * Update an album list after some of the albums changed, without checking the albums that
+     * didn't change. Don't call this while is_pending(), since the pending album list would
+     * replace this one.
      *
-     * @param find_all If true, then find all songs that match all filters. Otherwise, stop after
-     *            the first song.
+     * @param album_list The current album list.
+     * @param albumids The albums that changed, which may have been deleted.
+     * @return the new album list, with the changed albums at the end.
      */
-    private boolean generate_song_list(Album album, IntList song_list, boolean find_all) {
-        if (album.song_list == null) {
-            return false;
+    public int[] update_album_list(int[] album_list, IntList albumids) {
+        List<Filter> filters = this.filter_list;
+        Set<Integer> changed = new HashSet<>();
+        for (int idx = 0; idx < albumids.size(); idx++) {
+            changed.add(albumids.get(idx));
         }
-        List<Filter> new_filter_list = new LinkedList<>();
-        for (Filter filter : this.filter_list) {
-            if (!album_match(album, filter)) {
-                // Check the individual songs against this filter.
-                new_filter_list.add(filter);
+        IntList new_list = new IntList();
+        for (int albumid : album_list) {
+            if (!changed.contains(albumid)) {
+                new_list.add(albumid);
             }
         }
-        for (int songid : album.song_list) {
-            Song song = this.database.song_list.get(songid);
-            if (is_song_displayed(song, new_filter_list)) {
-                if (!find_all) {
-                    return true;
-                }
-                song_list.add(song.id);
+        IntList song_list = new IntList();
+        for (int albumid : changed) {
+            if (albumid <= 0 || albumid >= this.database.album_list.size()) {
+                continue;
+            }
+            Album album = this.database.album_list.get(albumid);
+            if (generate_song_list(this.database, album, filters, song_list, false)) {
+                new_list.add(albumid);
             }
         }
-        return false;
+        return new_list.finish();
     }
 
     /**
-     * @return true if the album matches the filter.
+     * For each album in the database, if the album contains at least one song that matches all
+     * filters, then add the album to the list.
+     *
+     * @param database A copy of the database's lists.
+     * @param request The generation of the request.
+     * @return the album list, or null if the request was cancelled.
      */
-    private boolean album_match(Album album, Filter filter) {
-        if (filter.text.equals(":unchecked")) {
-            int count = 0;
-            for (int songid : album.song_list) {
-                if (this.check_database.get(songid)) {
-                    count++;
-                }
+    private int[] generate_album_list(Database database, int request) {
+        List<Filter> filters = this.filter_list;
+        int size = database.album_list.size();
+        boolean[] candidates = find_candidate_albums(database, filters, size);
+        IntList album_list;
+        if (size < PARALLEL_THRESHOLD) {
+            album_list = scan_albums(database, request, filters, candidates, 1, size);
+        } else {
+            album_list = ForkJoinPool.commonPool().invoke(
+                    new AlbumScan(database, request, filters, candidates, 1, size));
+        }
+        return album_list == null ? null : album_list.finish();
+    }
+
+    /**
+     * Check the albums from start up to (but not including) end.
+     *
+     * @return the ids of the matching albums, or null if the request was cancelled.
+     */
+    private IntList scan_albums(Database database, int request, List<Filter> filters,
+                                boolean[] candidates, int start, int end) {
+        IntList album_list = new IntList();
+        IntList song_list = new IntList();
+        for (int idx = start; idx < end; idx++) {
+            if (idx % CANCEL_CHECK_INTERVAL == 0 && is_cancelled(request)) {
+                return null;
+            }
+            if (candidates != null && !candidates[idx]) {
+                continue;
+            }
+            Album album = database.album_list.get(idx);
+            if (generate_song_list(database, album, filters, song_list, false)) {
+                album_list.add(album.id);
             }
-            return (count == 0);
         }
-        if (string_match(album.name, filter.text)) {
-            return true;
+        return album_list;
+    }
+
+    /**
+     * Split a range of albums in half until it is small enough to check in one thread, and
+     * then join the results in album order.
+     */
+    private class AlbumScan extends RecursiveTask<IntList> {
+        private static final long serialVersionUID = 1L;
+        private final Database database;
+        private final int request;
+        private final List<Filter> filters;
+        private final boolean[] candidates;
+        private final int start;
+        private final int end;
+
+        public AlbumScan(Database database, int request, List<Filter> filters,
+                         boolean[] candidates, int start, int end) {
+            this.database = database;
+            this.request = request;
+            this.filters = filters;
+            this.candidates = candidates;
+            this.start = start;
+            this.end = end;
         }
-        if (album.artistid > 0) {
-            Artist artist = this.database.artist_list.get(album.artistid);
-            if (string_match(artist.name, filter.text)) {
-                return true;
+
+        @Override
+        protected IntList compute() {
+            if (this.end - this.start <= PARALLEL_CHUNK_SIZE) {
+                return scan_albums(this.database, this.request, this.filters, this.candidates,
+                        this.start, this.end);
+            }
+            int middle = (this.start + this.end) >>> 1;
+            AlbumScan second = new AlbumScan(this.database, this.request, this.filters,
+                    this.candidates, middle, this.end);
+            second.fork();
+            IntList first_list = new AlbumScan(this.database, this.request, this.filters,
+                    this.candidates, this.start, middle).compute();
+            IntList second_list = second.join();
+            if (first_list == null || second_list == null) {
+                return null;
             }
+            for (int idx = 0; idx < second_list.size(); idx++) {
+                first_list.add(second_list.get(idx));
+            }
+            return first_list;
         }
-        return false;
     }
 
     /**
-     * @return true if the song matches all filters.
+     * Use the search index to find the albums that might match all filters, so we don't need to
+     * check every album in the database.
+     *
+     * @return an array where candidates[albumid] is true if the album might match, or null if
+     *         every album might match.
      */
-    private boolean is_song_displayed(Song song, List<Filter> new_filter_list) {
-        for (Filter filter : new_filter_list) {
-            if (!song_match(song, filter)) {
-                return false;
+    private static boolean[] find_candidate_albums(Database database, List<Filter> filters,
+                                                   int size) {
+        boolean[] candidates = null;
+        for (Filter filter : filters) {
+            boolean[] albums = filter.query.find_albums(database, size);
+            if (albums == null) {
+                continue;
+            }
+            if (candidates != null) {
+                for (int albumid = 0; albumid < size; albumid++) {
+                    albums[albumid] &= candidates[albumid];
+                }
             }
+            candidates = albums;
         }
-        return true;
+        return candidates;
     }
 
     /**
-     * @return true if the song matches the filter.
+     * For each song on the album, if the song matches all filters, then add it to the given list.
+     *
+     * @param find_all If true, then find all songs that match all filters. Otherwise, stop after
+     *            the first song.
      */
-    private boolean song_match(Song song, Filter filter) {
-        if (string_match(song.title, filter.text)) {
-            return true;
+    private boolean generate_song_list(Database database, Album album, List<Filter> filters,
+                                       IntList song_list, boolean find_all) {
+        int[] album_song_list = album.song_list;
+        if (album_song_list == null) {
+            return false;
         }
-        if (string_match(song.tags, filter.text)) {
-            return true;
+        List<Filter> new_filter_list = new ArrayList<>();
+        for (Filter filter : filters) {
+            int match = filter.query.match_album(database, this.check_database, album);
+            if (match == Query.NONE) {
+                return false;
+            }
+            if (match == Query.SOME) {
+                // Check the individual songs against this filter.
+                new_filter_list.add(filter);
+            }
         }
-        if (song.year > 0) {
-            try {
-                if (song.year == Integer.parseInt(filter.text)) {
+        for (int songid : album_song_list) {
+            // The album may have songs that were added after the copy was made.
+            if (songid >= database.song_list.size()) {
+                continue;
+            }
+            Song song = database.song_list.get(songid);
+            if (is_song_displayed(database, album, song, new_filter_list)) {
+                if (!find_all) {
                     return true;
                 }
-            } catch (Exception dummy) {
-            }
-        }
-        if (song.artistid > 0) {
-            Artist artist = this.database.artist_list.get(song.artistid);
-            if (string_match(artist.name, filter.text)) {
-                return true;
+                song_list.add(song.id);
             }
         }
         return false;
     }
 
-    private boolean string_match(String song_text, String filter_text) {
-        if (song_text == null || filter_text == null) {
-            return false;
+    /**
+     * @return true if the song matches all filters.
+     */
+    private boolean is_song_displayed(Database database, Album album, Song song,
+                                      List<Filter> new_filter_list) {
+        for (Filter filter : new_filter_list) {
+            if (!filter.query.match_song(database, this.check_database, album, song)) {
+                return false;
+            }
         }
-        return song_text.toLowerCase().contains(filter_text.toLowerCase());
+        return true;
     }
 
     /**
@@ -183,7 +333,7 @@ public class FilterWorker {
         Album album = this.database.album_list.get(albumid);
         IntList song_list = new IntList();
         if (album.song_list != null) {
-            generate_song_list(album, song_list, true);
+            generate_song_list(this.database, album, this.filter_list, song_list, true);
         }
         return song_list;
     }
@@ -9,30 +9,105 @@ package albumish;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Display;
 import org.jaudiotagger.audio.AudioFile;
 import org.jaudiotagger.audio.AudioFileIO;
 import org.jaudiotagger.tag.Tag;
 import org.jaudiotagger.tag.images.Artwork;
 
+/**
+ * Load the album cover images in background threads.
+ *
+ * The albums are loaded in order of their distance from the part of the cover panel that is
+ * visible, and then their distance from the selected album. A few albums past the visible ones,
+ * in the direction that the panel is scrolling, are loaded ahead of time. Requests for albums
+ * that have scrolled too far out of view are dropped.
+ *
+ * The scaled images are saved in a thumbnail cache on disk, so each cover image only has to be
+ * decoded and scaled once.
+ *
+ * The images are kept in a cache with a limited size, set by "gallery_cache_mb" in the
+ * configuration. When the cache is full, the images of the album that was painted longest ago
+ * are disposed, except for the albums that are currently visible.
+ */
 public class Gallery implements Runnable {
 
+    private static final int DEFAULT_CACHE_MB = 256;
+    private static final int MAX_LOADER_THREADS = 4;
+    // How many albums outside the visible ones are worth loading.
+    private static final int PREFETCH_ALBUMS = 10;
+    private static final long DROP = Long.MAX_VALUE;
+
+    /**
+     * A request to load an album's images. Lower priorities are loaded first.
+     */
+    private static class Request implements Comparable<Request> {
+        public final int albumid;
+        public final long priority;
+
+        public Request(int albumid, long priority) {
+            this.albumid = albumid;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            return Long.compare(this.priority, other.priority);
+        }
+    }
+
+    /**
+     * The images of one album, in both sizes.
+     */
+    private static class CacheEntry {
+        public final Image small_image;
+        public final Image big_image;
+        public final long bytes;
+
+        public CacheEntry(Image small_image, Image big_image, long bytes) {
+            this.small_image = small_image;
+            this.big_image = big_image;
+            this.bytes = bytes;
+        }
+    }
+
     private final Jukebox player;
     private final Display display;
     private final File topdir;
     private final int small_size;
     private final int big_size;
     private final List<Boolean> is_loaded;
-    private final Map<Integer, Image> small_map;
-    private final Map<Integer, Image> big_map;
-    private final LinkedBlockingDeque<Integer> workstack;
+    // The cached images, from least to most recently painted.
+    private final LinkedHashMap<Integer, CacheEntry> cache;
+    private final long cache_limit;
+    private long cache_bytes;
+    private int hits;
+    private int misses;
+    private int evictions;
+    private final PriorityBlockingQueue<Request> queue;
+    // The albums that are in the queue or being loaded.
+    private final Set<Integer> pending;
+    // The album list in the cover panel, the position of each album in it, and the part of it
+    // that is visible.
+    private int[] view_list;
+    private int[] view_positions;
+    private int view_first;
+    private int view_last;
+    private int view_selected;
+    private int scroll_direction;
+    private final ThumbnailCache thumbnails;
 
     public Gallery(Jukebox player, Display display, File topdir, int[] sizes) {
         this.player = player;
@@ -41,11 +116,23 @@ public class Gallery implements Runnable {
         this.small_size = sizes[0];
         this.big_size = sizes[1];
         this.is_loaded = new ArrayList<>(player.database.album_list.size());
-        this.small_map = new TreeMap<>();
-        this.big_map = new TreeMap<>();
-        this.workstack = new LinkedBlockingDeque<>();
-        Thread thread = new Thread(this);
-        thread.start();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        long limit_mb = DEFAULT_CACHE_MB;
+        String value = player.config.get("gallery_cache_mb");
+        if (value != null) {
+            limit_mb = Utils.parseInt(value);
+        }
+        this.cache_limit = limit_mb * 1024 * 1024;
+        this.cache_bytes = 0;
+        this.queue = new PriorityBlockingQueue<>();
+        this.pending = ConcurrentHashMap.newKeySet();
+        this.thumbnails = new ThumbnailCache(player.getFile(".cache/albumish/thumbs"));
+        int threads = Math.min(MAX_LOADER_THREADS, Runtime.getRuntime().availableProcessors());
+        for (int idx = 0; idx < threads; idx++) {
+            Thread thread = new Thread(this, "Gallery-" + idx);
+            thread.setDaemon(true);
+            thread.start();
+        }
     }
 
     public void get_sizes(int[] sizes) {
@@ -54,31 +141,193 @@ public class Gallery implements Runnable {
     }
 
     public Image get(int albumid, boolean is_selected) {
+        synchronized (this) {
+            grow_is_loaded(albumid);
+            if (!this.is_loaded.get(albumid)) {
+                this.misses++;
+                request(albumid);
+                return null;
+            }
+            CacheEntry entry = this.cache.get(albumid);
+            if (entry == null) {
+                return null;
+            }
+            this.hits++;
+            return is_selected ? entry.big_image : entry.small_image;
+        }
+    }
+
+    private void grow_is_loaded(int albumid) {
         while (this.is_loaded.size() <= albumid) {
             this.is_loaded.add(false);
         }
-        if (!this.is_loaded.get(albumid)) {
-            if (!this.workstack.contains(albumid)) {
-                this.workstack.add(albumid);
+    }
+
+    /**
+     * Queue the album to be loaded, unless it is already queued.
+     */
+    private void request(int albumid) {
+        long priority = get_priority(albumid);
+        if (priority != DROP && this.pending.add(albumid)) {
+            this.queue.add(new Request(albumid, priority));
+        }
+    }
+
+    /**
+     * Called by the cover panel when it paints. The images of the visible albums are never
+     * evicted. When the visible albums change, the queue is sorted again, and the next few
+     * albums in the direction of scrolling are queued.
+     */
+    public synchronized void set_visible_albums(int[] album_list, int first_idx, int last_idx,
+            int selected_idx) {
+        if (album_list != this.view_list) {
+            int[] positions = new int[this.player.database.album_list.size()];
+            Arrays.fill(positions, -1);
+            for (int idx = 0; idx < album_list.length; idx++) {
+                if (album_list[idx] < positions.length) {
+                    positions[album_list[idx]] = idx;
+                }
+            }
+            this.view_list = album_list;
+            this.view_positions = positions;
+            this.scroll_direction = 0;
+        } else if (first_idx == this.view_first && last_idx == this.view_last &&
+                selected_idx == this.view_selected) {
+            return;
+        } else if (first_idx != this.view_first) {
+            this.scroll_direction = first_idx > this.view_first ? 1 : -1;
+        }
+        this.view_first = first_idx;
+        this.view_last = last_idx;
+        this.view_selected = selected_idx;
+
+        List<Request> requests = new ArrayList<>();
+        this.queue.drainTo(requests);
+        for (Request request : requests) {
+            long priority = get_priority(request.albumid);
+            if (priority == DROP) {
+                this.pending.remove(request.albumid);
+            } else {
+                this.queue.add(new Request(request.albumid, priority));
+            }
+        }
+        if (this.scroll_direction != 0) {
+            for (int count = 1; count <= PREFETCH_ALBUMS; count++) {
+                int idx = this.scroll_direction > 0 ? last_idx + count : first_idx - count;
+                if (idx < 0 || idx >= album_list.length) {
+                    break;
+                }
+                int albumid = album_list[idx];
+                grow_is_loaded(albumid);
+                if (!this.is_loaded.get(albumid)) {
+                    request(albumid);
+                }
             }
-            return null;
         }
-        return (is_selected ?
-                this.big_map.get(albumid) :
-                this.small_map.get(albumid));
+    }
+
+    /**
+     * @return the order in which to load the album, or DROP if it is too far out of view.
+     *         Albums behind the direction of scrolling count as twice as far away.
+     */
+    private synchronized long get_priority(int albumid) {
+        if (this.view_list == null) {
+            return 0;
+        }
+        int idx = albumid < this.view_positions.length ? this.view_positions[albumid] : -1;
+        if (idx < 0) {
+            return DROP;
+        }
+        int distance = 0;
+        if (idx < this.view_first) {
+            distance = (this.view_first - idx) * (this.scroll_direction > 0 ? 2 : 1);
+        } else if (idx > this.view_last) {
+            distance = (idx - this.view_last) * (this.scroll_direction < 0 ? 2 : 1);
+        }
+        if (distance > PREFETCH_ALBUMS) {
+            return DROP;
+        }
+        return ((long) distance << 32) | Math.abs(idx - this.view_selected);
+    }
+
+    private boolean is_visible(int albumid) {
+        if (this.view_list == null || albumid >= this.view_positions.length) {
+            return false;
+        }
+        int idx = this.view_positions[albumid];
+        return idx >= 0 && idx >= this.view_first && idx <= this.view_last;
+    }
+
+    /**
+     * Add the album's images to the cache, and evict the least recently painted albums if the
+     * cache is over its limit.
+     */
+    private synchronized void cache_put(int albumid, Image small_image, Image big_image) {
+        long bytes = image_bytes(small_image) + image_bytes(big_image);
+        remove_entry(albumid);
+        this.cache.put(albumid, new CacheEntry(small_image, big_image, bytes));
+        this.cache_bytes += bytes;
+        Iterator<Map.Entry<Integer, CacheEntry>> iter = this.cache.entrySet().iterator();
+        while (this.cache_bytes > this.cache_limit && iter.hasNext()) {
+            Map.Entry<Integer, CacheEntry> item = iter.next();
+            int other_albumid = item.getKey();
+            if (other_albumid == albumid || is_visible(other_albumid)) {
+                continue;
+            }
+            iter.remove();
+            dispose(item.getValue());
+            this.is_loaded.set(other_albumid, false);
+            this.evictions++;
+        }
+    }
+
+    private synchronized void remove_entry(int albumid) {
+        CacheEntry entry = this.cache.remove(albumid);
+        if (entry != null) {
+            dispose(entry);
+        }
+    }
+
+    /**
+     * Dispose the images in the UI thread, after it is done painting with them.
+     */
+    private void dispose(final CacheEntry entry) {
+        this.cache_bytes -= entry.bytes;
+        this.display.asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                entry.small_image.dispose();
+                entry.big_image.dispose();
+            }
+        });
+    }
+
+    private static long image_bytes(Image image) {
+        Rectangle bounds = image.getBounds();
+        return 4L * bounds.width * bounds.height;
+    }
+
+    /**
+     * Print how well the cache worked.
+     */
+    public synchronized void report_stats() {
+        System.out.println("gallery: " + this.hits + " hits, " + this.misses + " misses, " +
+                this.evictions + " evictions, " + this.cache.size() + " albums, " +
+                (this.cache_bytes / (1024 * 1024)) + " MB");
     }
 
     @Override
     public void run() {
         while (true) {
             try {
-                while (this.workstack.size() > 10) {
-                    this.workstack.removeFirst();
-                }
-                int albumid = this.workstack.takeFirst();
-                if (!this.is_loaded.get(albumid)) {
-                    this.is_loaded.set(albumid, true);
-                    load_image(albumid);
+                Request request = this.queue.take();
+                int albumid = request.albumid;
+                try {
+                    if (start_loading(albumid)) {
+                        load_image(albumid);
+                    }
+                } finally {
+                    this.pending.remove(albumid);
                 }
             } catch (Exception exception) {
                 System.err.println("load_image: " + exception);
@@ -86,27 +335,49 @@ public class Gallery implements Runnable {
         }
     }
 
+    /**
+     * @return true if the album should be loaded now, or false if it is already loaded or it
+     *         has scrolled out of view.
+     */
+    private synchronized boolean start_loading(int albumid) {
+        if (this.is_loaded.get(albumid) || get_priority(albumid) == DROP) {
+            return false;
+        }
+        this.is_loaded.set(albumid, true);
+        return true;
+    }
+
     private void load_image(final int albumid) {
         ImageData[] images = null;
         Album album = this.player.database.album_list.get(albumid);
         File file = get_image_file(album);
         if (file != null && file.exists()) {
-            try {
-                images = ImageConverter.getScaledImages(file,
-                        this.small_size, this.big_size);
-            } catch (Exception exception) {
-                System.err.println(file + ": " + exception);
+            images = get_cached_images(file);
+            if (images == null) {
+                try {
+                    images = ImageConverter.getScaledImages(file,
+                            this.small_size, this.big_size);
+                    put_cached_images(file, images);
+                } catch (Exception exception) {
+                    System.err.println(file + ": " + exception);
+                }
             }
         }
         if (images == null) {
-            try {
-                Artwork artwork = get_audio_file_artwork(album.song_list[0]);
-                if (artwork != null) {
-                    images = ImageConverter.getScaledImages(artwork,
-                            this.small_size, this.big_size);
+            File audio_file = this.player.getFile(
+                    this.player.database.song_list.get(album.song_list[0]));
+            images = get_cached_images(audio_file);
+            if (images == null) {
+                try {
+                    Artwork artwork = get_audio_file_artwork(album.song_list[0]);
+                    if (artwork != null) {
+                        images = ImageConverter.getScaledImages(artwork,
+                                this.small_size, this.big_size);
+                        put_cached_images(audio_file, images);
+                    }
+                } catch (Exception exception) {
+                    System.err.println(file + ": " + exception);
                 }
-            } catch (Exception exception) {
-                System.err.println(file + ": " + exception);
             }
         }
         if (images == null) {
@@ -116,8 +387,8 @@ public class Gallery implements Runnable {
             System.err.println(album.name + ": failed to scale image");
             return;
         }
-        this.small_map.put(albumid, new Image(this.display, images[0]));
-        this.big_map.put(albumid, new Image(this.display, images[1]));
+        cache_put(albumid, new Image(this.display, images[0]),
+                new Image(this.display, images[1]));
         this.display.asyncExec(new Runnable() {
             @Override
             public void run() {
@@ -126,6 +397,29 @@ public class Gallery implements Runnable {
         });
     }
 
+    /**
+     * @param source The image file, or the audio file whose artwork is the image.
+     * @return both sizes of the image from the thumbnail cache, or null if either is missing.
+     */
+    private ImageData[] get_cached_images(File source) {
+        ImageData small_image = this.thumbnails.get(source, this.small_size);
+        if (small_image == null) {
+            return null;
+        }
+        ImageData big_image = this.thumbnails.get(source, this.big_size);
+        if (big_image == null) {
+            return null;
+        }
+        return new ImageData[] { small_image, big_image };
+    }
+
+    private void put_cached_images(File source, ImageData[] images) {
+        if (images != null && images[0] != null && images[1] != null) {
+            this.thumbnails.put(source, this.small_size, images[0]);
+            this.thumbnails.put(source, this.big_size, images[1]);
+        }
+    }
+
     public File get_image_file(Album album) {
         if (album.name == null) {
             return null;
@@ -166,14 +460,13 @@ public class Gallery implements Runnable {
         Album album = this.player.database.album_list.get(albumid);
         File dstfile = get_image_file(album);
         Utils.copy_file(new File(srcfile), dstfile);
-        if (this.is_loaded.size() > albumid) {
-            this.is_loaded.set(albumid, false);
-        }
+        invalidate(albumid);
     }
 
-    public void invalidate(int albumid) {
+    public synchronized void invalidate(int albumid) {
         if (this.is_loaded.size() > albumid) {
             this.is_loaded.set(albumid, false);
         }
+        remove_entry(albumid);
     }
 }
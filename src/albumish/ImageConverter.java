@@ -19,8 +19,10 @@ package albumish;
  */
 import java.awt.image.BufferedImage;
 import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
@@ -36,6 +38,11 @@ import org.jaudiotagger.tag.images.Artwork;
 public class ImageConverter {
 
     static ImageData convertToSWT(BufferedImage bufferedImage) {
+        switch (bufferedImage.getType()) {
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_ARGB:
+            return convertIntRGB(bufferedImage);
+        }
         if (bufferedImage.getColorModel() instanceof DirectColorModel) {
             DirectColorModel colorModel = (DirectColorModel) bufferedImage.getColorModel();
             PaletteData palette = new PaletteData(colorModel.getRedMask(),
@@ -104,6 +111,44 @@ public class ImageConverter {
         return null;
     }
 
+    /**
+     * Convert an image with one int per pixel, which is what Scalr returns, by reading the
+     * pixels straight out of the raster's array.
+     */
+    private static ImageData convertIntRGB(BufferedImage bufferedImage) {
+        WritableRaster raster = bufferedImage.getRaster();
+        SinglePixelPackedSampleModel sampleModel =
+                (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+        int[] pixels = dataBuffer.getData();
+        int stride = sampleModel.getScanlineStride();
+        int start = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride -
+                raster.getSampleModelTranslateX();
+        boolean hasAlpha = bufferedImage.getType() == BufferedImage.TYPE_INT_ARGB;
+
+        PaletteData palette = new PaletteData(0xFF0000, 0x00FF00, 0x0000FF);
+        ImageData data = new ImageData(bufferedImage.getWidth(), bufferedImage.getHeight(), 24,
+                palette);
+        if (hasAlpha) {
+            data.alphaData = new byte[data.width * data.height];
+        }
+        for (int y = 0; y < data.height; y++) {
+            int src = start + y * stride;
+            int dst = y * data.bytesPerLine;
+            int alpha = y * data.width;
+            for (int x = 0; x < data.width; x++) {
+                int rgb = pixels[src++];
+                data.data[dst++] = (byte) (rgb >> 16);
+                data.data[dst++] = (byte) (rgb >> 8);
+                data.data[dst++] = (byte) rgb;
+                if (hasAlpha) {
+                    data.alphaData[alpha++] = (byte) (rgb >> 24);
+                }
+            }
+        }
+        return data;
+    }
+
     /**
      * Read the given file as an AWT image. Then, for each specified size, scale the image to a
      * square with the given size. Then, convert the scaled AWT images to SWT images.
@@ -1,5 +1,7 @@
 package albumish;
 
+import java.util.Arrays;
+
 public class IntList {
     private int[] list;
     private int size;
@@ -10,6 +12,14 @@ public class IntList {
         this.size = 0;
     }
 
+    /**
+     * Make a list that uses the given array, without copying it.
+     */
+    public IntList(int[] values) {
+        this.list = values == null ? new int[4] : values;
+        this.size = values == null ? 0 : values.length;
+    }
+
     public IntList(Integer[] orig) {
         this.list = new int[orig.length];
         this.size = orig.length;
@@ -96,6 +106,16 @@ public class IntList {
         return -1;
     }
 
+    /**
+     * Search a sorted list for the given value.
+     *
+     * @return the index of the value, or (-(insertion point) - 1) if the list does not contain
+     *         the value, the same as Arrays.binarySearch().
+     */
+    public int binary_search(int value) {
+        return Arrays.binarySearch(this.list, 0, this.size, value);
+    }
+
     public void swap(int idx, int other_idx) {
         int tmp = this.list[idx];
         this.list[idx] = this.list[other_idx];
@@ -24,6 +24,7 @@ public class Jukebox implements SelectionListener {
 
     private enum Cmd {
         ADD_FOLDER,
+        RESCAN_LIBRARY,
         RIP_CD,
         SYNC_TO_DEVICE,
         DOWNLOAD_BPM,
@@ -63,6 +64,7 @@ public class Jukebox implements SelectionListener {
     private final SongPanel playlist_song_panel;
     private final SongPanel album_song_panel;
     private final PlayerThread player_thread;
+    private LibraryWatcher library_watcher;
     private int num_random_playlists;
 
     public static void main(String[] argv) {
@@ -85,8 +87,11 @@ public class Jukebox implements SelectionListener {
         this.home_directory = System.getProperty("user.home");
         File directory = new File(this.home_directory, ".albumish");
         this.database = new Database();
-        this.database.load(directory, "database.json");
-        this.check_database = new CheckDatabase(this.database, directory, "checked_songs.list");
+        if (!this.database.load_snapshot(directory, "database.json", "database.snapshot")) {
+            this.database.load(directory, "database.json");
+        }
+        this.database.open_journal();
+        this.check_database = new CheckDatabase(this.database, directory, "checked_songs.bin");
         this.config = new Configuration(directory, "config.json");
         this.playlists = new PlaylistCollection(this.database, directory);
         this.num_random_playlists = this.playlists.get_max_with_prefix(RANDOM_PLAYLIST_PREFIX);
@@ -133,6 +138,14 @@ public class Jukebox implements SelectionListener {
         this.top_panel.grab_focus();
         this.player_thread = new PlayerThread(this);
         this.player_thread.start();
+        if (this.config.flag("watch")) {
+            try {
+                this.library_watcher = new LibraryWatcher(this);
+                this.library_watcher.start();
+            } catch (Exception exception) {
+                System.err.println("LibraryWatcher: " + exception);
+            }
+        }
     }
 
     public Image get_icon(String iname) {
@@ -159,6 +172,7 @@ public class Jukebox implements SelectionListener {
         menu = new Menu(shell, SWT.DROP_DOWN);
         cascade.setMenu(menu);
         addMenuItem(menu, "&Add Folder to Library...", "A", Cmd.ADD_FOLDER);
+        addMenuItem(menu, "Rescan Library...", null, Cmd.RESCAN_LIBRARY);
         addMenuItem(menu, "&Rip CD to Library...", null, Cmd.RIP_CD);
         addMenuItem(menu, "&Sync to Device...", null, Cmd.SYNC_TO_DEVICE);
         addMenuItem(menu, "Download BPM data...", null, Cmd.DOWNLOAD_BPM);
@@ -209,14 +223,13 @@ public class Jukebox implements SelectionListener {
      * Called by top_panel. Update cover_panel.
      */
     public void set_filter(String text) {
-        int[] album_list;
         if (text == null || text.isEmpty()) {
-            album_list = this.filter_worker.remove_filter(0);
+            this.filter_worker.remove_filter(0);
         } else {
             Filter filter = new Filter(0, text);
-            album_list = this.filter_worker.add_filter(filter);
+            this.filter_worker.add_filter(filter);
         }
-        this.cover_panel.reset(album_list);
+        reset_albums();
     }
 
     /**
@@ -229,10 +242,13 @@ public class Jukebox implements SelectionListener {
                 display.sleep();
             }
         }
-        // TODO this.album_song_panel.update_database();
+        if (this.library_watcher != null) {
+            this.library_watcher.stop();
+        }
         this.playlists.save(this.database);
         this.database.save();
         this.check_database.save();
+        this.gallery.report_stats();
     }
 
     @Override
@@ -245,6 +261,9 @@ public class Jukebox implements SelectionListener {
         case ADD_FOLDER:
             new AddToLibraryManager().add_to_library(this);
             break;
+        case RESCAN_LIBRARY:
+            new RescanManager().rescan_library(this);
+            break;
         case RIP_CD:
             new RipManager().rip_cd(this);
             break;
@@ -312,7 +331,6 @@ public class Jukebox implements SelectionListener {
      */
     public void select_album(int albumid) {
         if (albumid >= 0) {
-            this.album_song_panel.update_database();
             IntList song_list = this.filter_worker.generate_song_list(albumid);
             this.album_song_panel.reset(song_list, -1);
         }
@@ -326,10 +344,30 @@ public class Jukebox implements SelectionListener {
     }
 
     /**
-     * Called after updating library. Update cover_panel.
+     * Called after updating library. Update cover_panel when the filter worker finishes.
      */
     public void reset_albums() {
-        int[] album_list = this.filter_worker.generate_album_list();
+        this.database.checkpoint();
+        final Display display = this.main_window.getDisplay();
+        this.filter_worker.generate_album_list_async(display::asyncExec, album_list -> {
+            if (!this.cover_panel.isDisposed()) {
+                this.cover_panel.reset(album_list);
+            }
+        });
+    }
+
+    /**
+     * Called after some albums changed. Update cover_panel without filtering the other albums.
+     */
+    public void refresh_albums(IntList albumids) {
+        if (this.filter_worker.is_pending()) {
+            // The pending album list was made before these changes, so make it again.
+            reset_albums();
+            return;
+        }
+        this.database.checkpoint();
+        int[] album_list = this.filter_worker.update_album_list(
+                this.cover_panel.get_album_list(), albumids);
         this.cover_panel.reset(album_list);
     }
 
@@ -434,8 +472,9 @@ public class Jukebox implements SelectionListener {
             artist_name = this.database.artist_list.get(song.artistid).name;
         }
         String album_name = null;
-        if (song.albumid > 0) {
-            album_name = this.database.album_list.get(song.albumid).name;
+        int albumid = this.database.columns.get_albumid(song.id);
+        if (albumid > 0) {
+            album_name = this.database.album_list.get(albumid).name;
         }
         this.top_panel.display(song.title, artist_name, album_name, song.duration);
     }
@@ -453,8 +492,7 @@ public class Jukebox implements SelectionListener {
                 if (update_cover) {
                     int songid = playlist.get_songid_of_pid(playing_song_pid);
                     if (songid > 0) {
-                        Song song = this.database.song_list.get(songid);
-                        this.cover_panel.select_album(song.albumid);
+                        this.cover_panel.select_album(this.database.columns.get_albumid(songid));
                     }
                 }
                 if (this.playlist_song_panel.get_playlistid() == playing_listid) {
@@ -559,13 +597,11 @@ public class Jukebox implements SelectionListener {
         return new File(this.home_directory, song.filename);
     }
 
-    public String getRelativeFilename(String filename) {
-        if (filename.startsWith(this.home_directory)) {
-            filename = filename.substring(this.home_directory.length());
-            if (filename.startsWith("/")) {
-                filename = filename.substring(1);
-            }
-        }
-        return filename;
+    public File getFile(String filename) {
+        return new File(this.home_directory, filename);
+    }
+
+    public File getHomeDirectory() {
+        return new File(this.home_directory);
     }
 }
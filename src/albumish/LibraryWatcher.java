@@ -0,0 +1,290 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep the library up to date with the files in the folders that hold it, such as new rips.
+ *
+ * Events are collected until the folders have been quiet for a moment, so a file that is being
+ * written is only read once it is done. Then the tags of the new and modified files are read in
+ * the background, and the changes are applied to the database in the UI thread. The background
+ * thread never reads the database, since the UI thread may be changing it.
+ *
+ * Moving or renaming a file shows up as a delete and a create. If a new file matches a deleted
+ * song, the song is renamed, so it keeps its tags and its place in the playlists.
+ */
+public class LibraryWatcher implements Runnable {
+
+    // How long the folders must be quiet before we process the events.
+    private static final long QUIET_MS = 1000;
+    // The longest time to wait while the folders keep changing.
+    private static final long MAX_DELAY_MS = 10000;
+
+    private final Jukebox jukebox;
+    private final Path home;
+    private final WatchService watch_service;
+    private final Map<WatchKey, Path> directories;
+    private Set<String> folders;
+
+    /**
+     * A file that was created or modified, and its tags.
+     */
+    private static class Change {
+        public final Song song;
+        public final SongInfo obj;
+
+        public Change(Song song, SongInfo obj) {
+            this.song = song;
+            this.obj = obj;
+        }
+    }
+
+    public LibraryWatcher(Jukebox jukebox) throws IOException {
+        this.jukebox = jukebox;
+        this.home = jukebox.getHomeDirectory().toPath().toAbsolutePath();
+        this.watch_service = FileSystems.getDefault().newWatchService();
+        this.directories = new HashMap<>();
+    }
+
+    /**
+     * Start watching the library in a background thread. Call this from the UI thread.
+     */
+    public void start() {
+        this.folders = this.jukebox.database.get_top_folders();
+        Thread thread = new Thread(this, "LibraryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Utils.quietClose(this.watch_service);
+    }
+
+    @Override
+    public void run() {
+        for (String folder : this.folders) {
+            File directory = this.jukebox.getFile(folder);
+            if (directory.isDirectory()) {
+                register_tree(directory.toPath(), null);
+            }
+        }
+        Set<Path> pending = new TreeSet<>();
+        long first_event = 0;
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = this.watch_service.take();
+                } else {
+                    key = this.watch_service.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+                }
+                if (key != null) {
+                    read_events(key, pending);
+                    long now = System.currentTimeMillis();
+                    if (first_event == 0) {
+                        first_event = now;
+                    }
+                    if (now - first_event < MAX_DELAY_MS) {
+                        continue;
+                    }
+                }
+                if (!pending.isEmpty()) {
+                    process(pending);
+                    pending = new TreeSet<>();
+                }
+                first_event = 0;
+            }
+        } catch (ClosedWatchServiceException | InterruptedException exception) {
+            // stop() was called.
+        }
+    }
+
+    /**
+     * Watch the directory and all of its subdirectories.
+     *
+     * @param created If not null, add every file in the tree to this set. This is for
+     *            directories that were created, since we missed the events for their files.
+     */
+    private void register_tree(Path directory, final Set<Path> created) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                        throws IOException {
+                    WatchKey key = dir.register(LibraryWatcher.this.watch_service,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                    LibraryWatcher.this.directories.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (created != null) {
+                        created.add(path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException exception) {
+                    System.err.println(path + ": " + exception);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException exception) {
+            System.err.println(directory + ": " + exception);
+        }
+    }
+
+    private void read_events(WatchKey key, Set<Path> pending) {
+        Path directory = this.directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                System.err.println("LibraryWatcher: missed events, use Rescan Library");
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                    Files.isDirectory(path)) {
+                register_tree(path, pending);
+            } else {
+                pending.add(path);
+            }
+        }
+        if (!key.reset()) {
+            this.directories.remove(key);
+        }
+    }
+
+    /**
+     * Read the tags of the files that changed, and then update the database in the UI thread.
+     */
+    private void process(Set<Path> paths) {
+        final List<Change> changes = new ArrayList<>();
+        final List<String> deleted = new ArrayList<>();
+        for (Path path : paths) {
+            path = path.toAbsolutePath();
+            if (!path.startsWith(this.home) || Files.isDirectory(path)) {
+                continue;
+            }
+            String filename = this.home.relativize(path).toString();
+            if (File.separatorChar != '/') {
+                filename = filename.replace(File.separatorChar, '/');
+            }
+            if (!Files.exists(path)) {
+                deleted.add(filename);
+                continue;
+            }
+            if (!Utils.is_audio_file(filename)) {
+                continue;
+            }
+            Song song = new Song();
+            SongInfo obj = new SongInfo();
+            AddToLibraryManager.read_id3_tags(this.jukebox, filename, song, obj);
+            if (song.title != null) {
+                changes.add(new Change(song, obj));
+            }
+        }
+        if (changes.isEmpty() && deleted.isEmpty()) {
+            return;
+        }
+        this.jukebox.main_window.getDisplay().asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                apply_changes(changes, deleted);
+            }
+        });
+    }
+
+    /**
+     * Apply the changes to the database, and then refresh the albums that changed. This runs
+     * in the UI thread.
+     */
+    private void apply_changes(List<Change> changes, List<String> deleted) {
+        Database database = this.jukebox.database;
+        // A set, since a file and its folder may both have been deleted.
+        Set<Song> deleted_songs = new LinkedHashSet<>();
+        for (String filename : deleted) {
+            // This is either a file or a whole directory.
+            deleted_songs.addAll(database.find_songs_in_folder(filename));
+            Song song = database.find_song(filename);
+            if (song != null) {
+                deleted_songs.add(song);
+            }
+        }
+        MovedSongFinder finder = new MovedSongFinder(database, deleted_songs);
+        Set<Song> renamed_songs = new HashSet<>();
+        IntList albumids = new IntList();
+        for (Change change : changes) {
+            Song song = change.song;
+            Song old_song = database.find_song(song.filename);
+            if (old_song != null && old_song.size == song.size && old_song.mtime == song.mtime) {
+                // The file was touched, but it hasn't changed.
+                continue;
+            }
+            Song moved_song = old_song == null ? finder.find(song, change.obj) : null;
+            if (moved_song != null) {
+                moved_song.mtime = song.mtime;
+                moved_song.size = song.size;
+                moved_song.hash = song.hash;
+                database.rename_song(moved_song, song.filename);
+                renamed_songs.add(moved_song);
+                albumids.add(database.columns.get_albumid(moved_song.id));
+                continue;
+            }
+            if (old_song != null) {
+                // Keep the fields that don't come from the file.
+                change.obj.add_time = database.columns.get_add_time(old_song.id);
+                song.tags = old_song.tags;
+                if (change.obj.bpm == null) {
+                    change.obj.bpm = database.columns.get_bpm_text(old_song.id);
+                }
+                albumids.add(database.columns.get_albumid(old_song.id));
+            }
+            database.put_song(song, change.obj);
+            albumids.add(database.columns.get_albumid(song.id));
+        }
+        for (Song deleted_song : deleted_songs) {
+            if (!renamed_songs.contains(deleted_song)) {
+                albumids.add(database.columns.get_albumid(deleted_song.id));
+                database.delete_song(deleted_song.filename);
+            }
+        }
+        if (!renamed_songs.isEmpty()) {
+            this.jukebox.check_database.songs_renamed();
+        }
+        if (albumids.size() > 0) {
+            this.jukebox.refresh_albums(albumids);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Match new files to songs whose files are missing, so that a song that was moved or renamed
+ * keeps its id, tags and playlists.
+ *
+ * A new file with the same size and partial hash as a missing file is the same song. Songs
+ * that were added before the database recorded hashes are matched by their tags. This reads
+ * the database, so it must only be used in the UI thread.
+ */
+public class MovedSongFinder {
+
+    private final Map<String, List<Song>> by_hash = new HashMap<>();
+    private final Map<String, List<Song>> by_tags = new HashMap<>();
+
+    public MovedSongFinder(Database database, Collection<Song> missing_songs) {
+        for (Song song : missing_songs) {
+            if (song.hash != null) {
+                add(this.by_hash, get_hash_key(song), song);
+            } else {
+                add(this.by_tags, get_tags_key(song, database.get_song_info(song)), song);
+            }
+        }
+    }
+
+    /**
+     * @return the missing song that was moved to the new file, or null if there is none. Each
+     *         missing song is only returned once.
+     */
+    public Song find(Song song, SongInfo obj) {
+        Song old_song = remove(this.by_hash, get_hash_key(song));
+        if (old_song == null) {
+            old_song = remove(this.by_tags, get_tags_key(song, obj));
+        }
+        return old_song;
+    }
+
+    private static String get_hash_key(Song song) {
+        return song.size + " " + song.hash;
+    }
+
+    private static String get_tags_key(Song song, SongInfo obj) {
+        return song.title + "\0" + song.track_number + "\0" + song.duration + "\0" +
+                obj.artist + "\0" + obj.album;
+    }
+
+    private static void add(Map<String, List<Song>> map, String key, Song song) {
+        map.computeIfAbsent(key, k -> new ArrayList<>()).add(song);
+    }
+
+    private static Song remove(Map<String, List<Song>> map, String key) {
+        List<Song> songs = map.get(key);
+        if (songs == null) {
+            return null;
+        }
+        Song song = songs.remove(songs.size() - 1);
+        if (songs.isEmpty()) {
+            map.remove(key);
+        }
+        return song;
+    }
+}
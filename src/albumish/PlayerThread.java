@@ -194,9 +194,10 @@ public class PlayerThread extends Thread {
                     if (finished_songid > 0) {
                         // If the user already moved the selection away from the playing song,
                         // then he's looking at something else, so don't change the selection.
-                        Song finished = fjb.database.song_list.get(finished_songid);
-                        update_cover = song.albumid != finished.albumid &&
-                                fjb.get_selected_albumid() == finished.albumid;
+                        SongColumns columns = fjb.database.columns;
+                        int finished_albumid = columns.get_albumid(finished_songid);
+                        update_cover = columns.get_albumid(song.id) != finished_albumid &&
+                                fjb.get_selected_albumid() == finished_albumid;
                     }
                     PlayerThread.this.jukebox.jump_to_playing_song(update_cover);
                 }
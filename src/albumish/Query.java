@@ -0,0 +1,841 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled filter. The filter text is parsed once, into a tree of queries that can be checked
+ * against every album and song without looking at the text again.
+ *
+ * Plain words are matched against the album, artist, title, tags and year, like before. Words
+ * next to each other form one phrase, so "abbey road" matches the text "abbey road". In addition,
+ * the following are operators, so a filter that uses them no longer matches them as text:
+ *
+ * field:value   artist, album, title, tag and encoder match text in one field.
+ * field:range   year, bpm and bitrate match "1990", "1990..1999", ">120", "<=192", and so on.
+ * added:<30d    matches songs added less than 30 days ago. The units are h, d, w, m and y.
+ * "some text"   matches the quoted text.
+ * -query        matches songs that don't match the query.
+ * a OR b        matches songs that match either query.
+ * (query)       groups queries.
+ * :unchecked    matches albums where none of the songs are checked.
+ *
+ * For example, the filter  beatles (live)  matches songs that match both "beatles" and "live",
+ * not the text "beatles (live)", and  -remix  excludes remixes. Type the quotes, as in
+ * "beatles (live)", to match the text literally. A filter that isn't a valid query, such as one
+ * with an unclosed parenthesis or quote, is matched as plain text.
+ */
+public abstract class Query {
+
+    // The results of match_album().
+    public static final int NONE = 0;
+    public static final int ALL = 1;
+    public static final int SOME = -1;
+
+    /**
+     * @return NONE if none of the album's songs match, ALL if all of them match, or SOME if
+     *         each song must be checked with match_song().
+     */
+    public abstract int match_album(Database database, CheckDatabase check_database,
+                                    Album album);
+
+    /**
+     * @return true if the song matches.
+     */
+    public abstract boolean match_song(Database database, CheckDatabase check_database,
+                                       Album album, Song song);
+
+    /**
+     * Use the search index to find the albums that might match.
+     *
+     * @return an array where albums[albumid] is true if the album might match, or null if
+     *         every album might match.
+     */
+    public boolean[] find_albums(Database database, int size) {
+        return null;
+    }
+
+    /**
+     * Compile the filter text.
+     */
+    public static Query compile(String text) {
+        Parser parser = new Parser(text);
+        return parser.parse();
+    }
+
+    /**
+     * Both arguments are search keys, so we can compare them without converting case.
+     */
+    private static boolean string_match(String key, String query_key) {
+        return key != null && key.contains(query_key);
+    }
+
+    private static String get_artist_key(Database database, int artistid) {
+        return artistid > 0 ? database.artist_list.get(artistid).key : null;
+    }
+
+    private static boolean[] find_key_albums(Database database, String key, int size) {
+        IntList songids = database.search_index.find(key);
+        if (songids == null) {
+            return null;
+        }
+        boolean[] albums = new boolean[size];
+        for (int idx = 0; idx < songids.size(); idx++) {
+            int albumid = database.columns.get_albumid(songids.get(idx));
+            if (albumid < size) {
+                albums[albumid] = true;
+            }
+        }
+        return albums;
+    }
+
+    /**
+     * Matches songs that match all of the queries.
+     */
+    private static class And extends Query {
+        private final List<Query> list;
+
+        public And(List<Query> list) {
+            this.list = list;
+        }
+
+        @Override
+        public int match_album(Database database, CheckDatabase check_database, Album album) {
+            int result = ALL;
+            for (Query query : this.list) {
+                int value = query.match_album(database, check_database, album);
+                if (value == NONE) {
+                    return NONE;
+                }
+                if (value == SOME) {
+                    result = SOME;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public boolean match_song(Database database, CheckDatabase check_database, Album album,
+                                  Song song) {
+            for (Query query : this.list) {
+                if (!query.match_song(database, check_database, album, song)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean[] find_albums(Database database, int size) {
+            boolean[] albums = null;
+            for (Query query : this.list) {
+                boolean[] value = query.find_albums(database, size);
+                if (value == null) {
+                    continue;
+                }
+                if (albums != null) {
+                    for (int albumid = 0; albumid < size; albumid++) {
+                        value[albumid] &= albums[albumid];
+                    }
+                }
+                albums = value;
+            }
+            return albums;
+        }
+    }
+
+    /**
+     * Matches songs that match any of the queries.
+     */
+    private static class Or extends Query {
+        private final List<Query> list;
+
+        public Or(List<Query> list) {
+            this.list = list;
+        }
+
+        @Override
+        public int match_album(Database database, CheckDatabase check_database, Album album) {
+            int result = NONE;
+            for (Query query : this.list) {
+                int value = query.match_album(database, check_database, album);
+                if (value == ALL) {
+                    return ALL;
+                }
+                if (value == SOME) {
+                    result = SOME;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public boolean match_song(Database database, CheckDatabase check_database, Album album,
+                                  Song song) {
+            for (Query query : this.list) {
+                if (query.match_song(database, check_database, album, song)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean[] find_albums(Database database, int size) {
+            boolean[] albums = new boolean[size];
+            for (Query query : this.list) {
+                boolean[] value = query.find_albums(database, size);
+                if (value == null) {
+                    return null;
+                }
+                for (int albumid = 0; albumid < size; albumid++) {
+                    albums[albumid] |= value[albumid];
+                }
+            }
+            return albums;
+        }
+    }
+
+    /**
+     * Matches songs that don't match the query.
+     */
+    private static class Not extends Query {
+        private final Query query;
+
+        public Not(Query query) {
+            this.query = query;
+        }
+
+        @Override
+        public int match_album(Database database, CheckDatabase check_database, Album album) {
+            int value = this.query.match_album(database, check_database, album);
+            return value == SOME ? SOME : value == ALL ? NONE : ALL;
+        }
+
+        @Override
+        public boolean match_song(Database database, CheckDatabase check_database, Album album,
+                                  Song song) {
+            return !this.query.match_song(database, check_database, album, song);
+        }
+    }
+
+    /**
+     * Plain text, which matches the album name, the album artist, and the song's title, tags,
+     * year and artist.
+     */
+    private static class Text extends Query {
+        private final String key;
+        private final int year;
+
+        public Text(String text) {
+            this.key = Utils.search_key(text);
+            int year = 0;
+            try {
+                year = Integer.parseInt(text.trim());
+            } catch (NumberFormatException dummy) {
+            }
+            this.year = year;
+        }
+
+        private boolean match_album(Database database, Album album) {
+            return string_match(album.key, this.key) ||
+                    string_match(get_artist_key(database, album.artistid), this.key);
+        }
+
+        @Override
+        public int match_album(Database database, CheckDatabase check_database, Album album) {
+            return match_album(database, album) ? ALL : SOME;
+        }
+
+        @Override
+        public boolean match_song(Database database, CheckDatabase check_database, Album album,
+                                  Song song) {
+            if (string_match(song.title_key, this.key) || string_match(song.tags_key, this.key)) {
+                return true;
+            }
+            int year = database.columns.get_year(song.id);
+            if (year > 0 && year == this.year) {
+                return true;
+            }
+            if (string_match(get_artist_key(database, song.artistid), this.key)) {
+                return true;
+            }
+            return match_album(database, album);
+        }
+
+        @Override
+        public boolean[] find_albums(Database database, int size) {
+            return find_key_albums(database, this.key, size);
+        }
+    }
+
+    /**
+     * Text in one field: artist, album, title or tag.
+     */
+    private static class Field extends Query {
+        private final String field;
+        private final String key;
+
+        public Field(String field, String text) {
+            this.field = field;
+            this.key = Utils.search_key(text);
+        }
+
+        @Override
+        public int match_album(Database database, CheckDatabase check_database, Album album) {
+            switch (this.field) {
+            case "album":
+                return string_match(album.key, this.key) ? ALL : NONE;
+            case "artist":
+                if (string_match(get_artist_key(database, album.artistid), this.key)) {
+                    return ALL;
+                }
+                return SOME;
+            default:
+                return SOME;
+            }
+        }
+
+        @Override
+        public boolean match_song(Database database, CheckDatabase check_database, Album album,
+                                  Song song) {
+            switch (this.field) {
+            case "album":
+                return string_match(album.key, this.key);
+            case "artist":
+                return string_match(get_artist_key(database, song.artistid), this.key) ||
+                        string_match(get_artist_key(database, album.artistid), this.key);
+            case "title":
+                return string_match(song.title_key, this.key);
+            case "tag":
+                return string_match(song.tags_key, this.key);
+            default:
+                return false;
+            }
+        }
+
+        @Override
+        public boolean[] find_albums(Database database, int size) {
+            return find_key_albums(database, this.key, size);
+        }
+    }
+
+    /**
+     * @return the result of match_album() for an album where count of the songs match.
+     */
+    private static int album_match(int count, Album album) {
+        return count == 0 ? NONE : count == album.song_list.length ? ALL : SOME;
+    }
+
+    /**
+     * The song's encoder, ignoring case. The songs' encoders are read from the database's
+     * columns, so each distinct encoder is only compared to the text once.
+     */
+    private static class Encoder extends Query {
+        private final String text;
+        // Whether each encoder code matches, for the codes that existed when it was made.
+        private volatile boolean[] code_matches;
+
+        public Encoder(String text) {
+            this.text = text;
+            this.code_matches = new boolean[0];
+        }
+
+        @Override
+        public int match_album(Database database, CheckDatabase check_database, Album album) {
+            if (album.song_list == null) {
+                return NONE;
+            }
+            int count = 0;
+            for (int songid : album.song_list) {
+                if (match_code(database.columns, database.columns.get_encoder(songid))) {
+                    count++;
+                }
+            }
+            return album_match(count, album);
+        }
+
+        @Override
+        public boolean match_song(Database database, CheckDatabase check_database, Album album,
+                                  Song song) {
+            return match_code(database.columns, database.columns.get_encoder(song.id));
+        }
+
+        private boolean match_code(SongColumns columns, int code) {
+            boolean[] matches = this.code_matches;
+            if (code >= matches.length) {
+                List<String> names = columns.get_encoder_names();
+                matches = new boolean[names.size()];
+                for (int idx = 1; idx < matches.length; idx++) {
+                    matches[idx] = match_encoder(names.get(idx));
+                }
+                this.code_matches = matches;
+            }
+            return code < matches.length && matches[code];
+        }
+
+        private boolean match_encoder(String encoder) {
+            int length = this.text.length();
+            for (int idx = 0; idx + length <= encoder.length(); idx++) {
+                if (encoder.regionMatches(true, idx, this.text, 0, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A range of numbers in one field: year, bpm, bitrate or added. Songs where the field is
+     * unknown don't match. The fields are read from the database's columns.
+     */
+    private static class Range extends Query {
+        private static final int YEAR = 0;
+        private static final int BPM = 1;
+        private static final int BITRATE = 2;
+        private static final int ADDED = 3;
+
+        private final int field;
+        private final double low;
+        private final double high;
+        private final boolean low_inclusive;
+        private final boolean high_inclusive;
+        // For "added", the time when the query was compiled.
+        private final long now;
+
+        public Range(String field, double low, boolean low_inclusive, double high,
+                     boolean high_inclusive) {
+            switch (field) {
+            case "year":
+                this.field = YEAR;
+                break;
+            case "bpm":
+                this.field = BPM;
+                break;
+            case "bitrate":
+                this.field = BITRATE;
+                break;
+            default:
+                this.field = ADDED;
+                break;
+            }
+            this.low = low;
+            this.low_inclusive = low_inclusive;
+            this.high = high;
+            this.high_inclusive = high_inclusive;
+            this.now = System.currentTimeMillis() / 1000L;
+        }
+
+        @Override
+        public int match_album(Database database, CheckDatabase check_database, Album album) {
+            if (album.song_list == null) {
+                return NONE;
+            }
+            int count = 0;
+            for (int songid : album.song_list) {
+                if (match_songid(database.columns, songid)) {
+                    count++;
+                }
+            }
+            return album_match(count, album);
+        }
+
+        @Override
+        public boolean match_song(Database database, CheckDatabase check_database, Album album,
+                                  Song song) {
+            return match_songid(database.columns, song.id);
+        }
+
+        private boolean match_songid(SongColumns columns, int songid) {
+            double value;
+            switch (this.field) {
+            case YEAR:
+                value = columns.get_year(songid);
+                break;
+            case BPM:
+                value = columns.get_bpm(songid);
+                break;
+            case BITRATE:
+                value = columns.get_bitrate(songid);
+                break;
+            default:
+                // The range is the song's age in seconds.
+                int add_time = columns.get_add_time(songid);
+                if (add_time <= 0) {
+                    return false;
+                }
+                value = this.now - add_time;
+                break;
+            }
+            if (this.field != ADDED && !(value > 0)) {
+                return false;
+            }
+            if (value < this.low || (value == this.low && !this.low_inclusive)) {
+                return false;
+            }
+            if (value > this.high || (value == this.high && !this.high_inclusive)) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Matches the albums where none of the songs are checked.
+     */
+    private static class Unchecked extends Query {
+
+        @Override
+        public int match_album(Database database, CheckDatabase check_database, Album album) {
+            for (int songid : album.song_list) {
+                if (check_database.get(songid)) {
+                    return NONE;
+                }
+            }
+            return ALL;
+        }
+
+        @Override
+        public boolean match_song(Database database, CheckDatabase check_database, Album album,
+                                  Song song) {
+            return match_album(database, check_database, album) == ALL;
+        }
+    }
+
+    private static class Token {
+        public static final int WORD = 0;
+        public static final int QUOTED = 1;
+        public static final int OPEN = 2;
+        public static final int CLOSE = 3;
+        public static final int NOT = 4;
+        public static final int OR = 5;
+
+        public int type;
+        public String text;
+        public int start;
+        public int end;
+
+        public Token(int type, String text, int start, int end) {
+            this.type = type;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * A recursive descent parser for the grammar:
+     *
+     * or := and ("OR" and)*
+     * and := not+
+     * not := "-" not | "(" or ")" | term
+     *
+     * The parser never fails. If the text isn't a valid query, such as "(live" or "a OR", then
+     * the whole text is matched as plain text, the way every filter was matched before there
+     * were operators.
+     */
+    private static class Parser {
+        private final String text;
+        private final List<Token> tokens;
+        private int pos;
+        private boolean is_malformed;
+
+        public Parser(String text) {
+            this.text = text;
+            this.tokens = tokenize(text);
+            this.pos = 0;
+        }
+
+        public Query parse() {
+            List<Query> list = new ArrayList<>();
+            while (this.pos < this.tokens.size()) {
+                Query query = parse_or();
+                if (query != null) {
+                    list.add(query);
+                }
+                if (this.pos < this.tokens.size()) {
+                    // A ")" that doesn't close anything.
+                    this.is_malformed = true;
+                    this.pos++;
+                }
+            }
+            if (this.is_malformed) {
+                return new Text(this.text);
+            }
+            return list.size() == 1 ? list.get(0) : new And(list);
+        }
+
+        private Token peek() {
+            return this.pos < this.tokens.size() ? this.tokens.get(this.pos) : null;
+        }
+
+        private Query parse_or() {
+            List<Query> list = new ArrayList<>();
+            while (true) {
+                Query query = parse_and();
+                if (query != null) {
+                    list.add(query);
+                } else {
+                    // Nothing before or after "OR", or nothing inside "()".
+                    this.is_malformed = true;
+                }
+                Token token = peek();
+                if (token == null || token.type != Token.OR) {
+                    break;
+                }
+                this.pos++;
+            }
+            if (list.isEmpty()) {
+                return null;
+            }
+            return list.size() == 1 ? list.get(0) : new Or(list);
+        }
+
+        private Query parse_and() {
+            List<Query> list = new ArrayList<>();
+            while (true) {
+                Token token = peek();
+                if (token == null || token.type == Token.OR || token.type == Token.CLOSE) {
+                    break;
+                }
+                Query query = parse_not();
+                if (query != null) {
+                    list.add(query);
+                }
+            }
+            if (list.isEmpty()) {
+                return null;
+            }
+            return list.size() == 1 ? list.get(0) : new And(list);
+        }
+
+        private Query parse_not() {
+            Token token = this.tokens.get(this.pos++);
+            switch (token.type) {
+            case Token.NOT: {
+                Token next = peek();
+                if (next == null || next.type == Token.OR || next.type == Token.CLOSE) {
+                    this.is_malformed = true;
+                    return null;
+                }
+                Query query = parse_not();
+                return query == null ? null : new Not(query);
+            }
+            case Token.OPEN: {
+                Query query = parse_or();
+                Token next = peek();
+                if (next != null && next.type == Token.CLOSE) {
+                    this.pos++;
+                } else {
+                    this.is_malformed = true;
+                }
+                return query;
+            }
+            case Token.QUOTED:
+                if (token.text.isEmpty()) {
+                    this.is_malformed = true;
+                    return null;
+                }
+                return new Text(token.text);
+            default:
+                break;
+            }
+            Query query = parse_field(token.text);
+            if (query != null) {
+                return query;
+            }
+            // Join the plain words that follow this one into one phrase.
+            int end = token.end;
+            while (true) {
+                Token next = peek();
+                if (next == null || next.type != Token.WORD || parse_field(next.text) != null) {
+                    break;
+                }
+                end = next.end;
+                this.pos++;
+            }
+            return new Text(this.text.substring(token.start, end));
+        }
+
+        /**
+         * @return the query for a "field:value" word, or null if the word is plain text.
+         */
+        private static Query parse_field(String word) {
+            if (word.equals(":unchecked")) {
+                return new Unchecked();
+            }
+            int colon = word.indexOf(':');
+            if (colon <= 0 || colon == word.length() - 1) {
+                return null;
+            }
+            String field = word.substring(0, colon).toLowerCase();
+            String value = word.substring(colon + 1);
+            if (value.startsWith("\"")) {
+                int end = value.endsWith("\"") && value.length() > 1 ? value.length() - 1 :
+                        value.length();
+                value = value.substring(1, end);
+            }
+            if (value.isEmpty()) {
+                return null;
+            }
+            switch (field) {
+            case "artist":
+            case "album":
+            case "title":
+            case "tag":
+                return new Field(field, value);
+            case "encoder":
+                return new Encoder(value);
+            case "year":
+            case "bpm":
+            case "bitrate":
+                return parse_range(field, value, false);
+            case "added":
+                return parse_range(field, value, true);
+            default:
+                return null;
+            }
+        }
+
+        /**
+         * Parse "N", "A..B", "A..", "..B", ">N", ">=N", "<N" or "<=N".
+         *
+         * @param is_age If true, then the numbers are ages like "30d", and a single number
+         *            means "no older than".
+         * @return the query, or null if the value is not a valid range.
+         */
+        private static Query parse_range(String field, String value, boolean is_age) {
+            double low = Double.NEGATIVE_INFINITY, high = Double.POSITIVE_INFINITY;
+            boolean low_inclusive = true, high_inclusive = true;
+            try {
+                int dots = value.indexOf("..");
+                if (dots >= 0) {
+                    String first = value.substring(0, dots);
+                    String second = value.substring(dots + 2);
+                    if (first.isEmpty() && second.isEmpty()) {
+                        return null;
+                    }
+                    if (!first.isEmpty()) {
+                        low = parse_number(first, is_age);
+                    }
+                    if (!second.isEmpty()) {
+                        high = parse_number(second, is_age);
+                    }
+                } else if (value.startsWith(">=")) {
+                    low = parse_number(value.substring(2), is_age);
+                } else if (value.startsWith(">")) {
+                    low = parse_number(value.substring(1), is_age);
+                    low_inclusive = false;
+                } else if (value.startsWith("<=")) {
+                    high = parse_number(value.substring(2), is_age);
+                } else if (value.startsWith("<")) {
+                    high = parse_number(value.substring(1), is_age);
+                    high_inclusive = false;
+                } else if (is_age) {
+                    high = parse_number(value, is_age);
+                } else {
+                    low = high = parse_number(value, is_age);
+                }
+            } catch (NumberFormatException exception) {
+                return null;
+            }
+            return new Range(field, low, low_inclusive, high, high_inclusive);
+        }
+
+        /**
+         * @return the number, or for an age like "30d", the number of seconds.
+         */
+        private static double parse_number(String value, boolean is_age) {
+            if (!is_age) {
+                return Double.parseDouble(value);
+            }
+            long unit = 24 * 60 * 60;
+            char last = value.isEmpty() ? ' ' : value.charAt(value.length() - 1);
+            if (Character.isLetter(last)) {
+                switch (Character.toLowerCase(last)) {
+                case 'h':
+                    unit = 60 * 60;
+                    break;
+                case 'd':
+                    break;
+                case 'w':
+                    unit *= 7;
+                    break;
+                case 'm':
+                    unit *= 30;
+                    break;
+                case 'y':
+                    unit *= 365;
+                    break;
+                default:
+                    throw new NumberFormatException(value);
+                }
+                value = value.substring(0, value.length() - 1);
+            }
+            return Double.parseDouble(value) * unit;
+        }
+
+        /**
+         * Split the text into words, quoted text, parentheses, "-" and "OR".
+         */
+        private List<Token> tokenize(String text) {
+            List<Token> tokens = new ArrayList<>();
+            int length = text.length();
+            int idx = 0;
+            while (idx < length) {
+                char ch = text.charAt(idx);
+                if (Character.isWhitespace(ch)) {
+                    idx++;
+                } else if (ch == '(') {
+                    tokens.add(new Token(Token.OPEN, "(", idx, idx + 1));
+                    idx++;
+                } else if (ch == ')') {
+                    tokens.add(new Token(Token.CLOSE, ")", idx, idx + 1));
+                    idx++;
+                } else if (ch == '-' && idx + 1 < length &&
+                        !Character.isWhitespace(text.charAt(idx + 1))) {
+                    tokens.add(new Token(Token.NOT, "-", idx, idx + 1));
+                    idx++;
+                } else if (ch == '"') {
+                    int end = text.indexOf('"', idx + 1);
+                    if (end < 0) {
+                        this.is_malformed = true;
+                        end = length;
+                    }
+                    tokens.add(new Token(Token.QUOTED, text.substring(idx + 1, end), idx,
+                            Math.min(end + 1, length)));
+                    idx = end + 1;
+                } else {
+                    int start = idx;
+                    while (idx < length) {
+                        ch = text.charAt(idx);
+                        if (Character.isWhitespace(ch) || ch == '(' || ch == ')') {
+                            break;
+                        }
+                        if (ch == ':' && idx + 1 < length && text.charAt(idx + 1) == '"') {
+                            // A quoted field value, which can contain spaces.
+                            int end = text.indexOf('"', idx + 2);
+                            if (end < 0) {
+                                this.is_malformed = true;
+                            }
+                            idx = end < 0 ? length : end + 1;
+                            break;
+                        }
+                        idx++;
+                    }
+                    String word = text.substring(start, idx);
+                    int type = word.equals("OR") ? Token.OR : Token.WORD;
+                    tokens.add(new Token(type, word, start, idx));
+                }
+            }
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.MessageBox;
+
+/**
+ * Bring the library up to date with the files on disk, without reading the tags of every file.
+ *
+ * A file whose modification time and size match the database is assumed to be unchanged. The
+ * tags are read from files that have changed and from files that aren't in the database. A new
+ * file with the same size and partial hash as a missing file is the same song, moved to a new
+ * location. Songs that were added before the database recorded hashes are matched by their tags.
+ *
+ * A top-level folder that is missing or empty is probably a drive that isn't mounted, so the
+ * songs in it are left alone, and the user is told about it.
+ *
+ * The files are compared and read in a background thread. Then the moved files are matched,
+ * and the changes are applied to the database all at once, in the UI thread.
+ */
+public class RescanManager {
+
+    // How often to update the progress dialog.
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    private Jukebox jukebox;
+    private ProgressDialog dialog;
+
+    // The changes to apply to the database.
+    private final List<TagResult> updated_songs = new ArrayList<>();
+    // The files that aren't in the database. Some of them may be missing songs that moved.
+    private final List<TagResult> new_songs = new ArrayList<>();
+    private final List<Song> missing_songs = new ArrayList<>();
+    private final Map<Song, Long> song_sizes = new HashMap<>();
+    // The top-level folders that couldn't be scanned.
+    private final Set<String> unavailable_roots = new TreeSet<>();
+    // False if reading the tags stopped early, so some new files may not have been matched.
+    private boolean is_complete = true;
+
+    /**
+     * The result of reading one file's tags.
+     */
+    private static class TagResult {
+        public final Song song;
+        public final SongInfo obj;
+        // The song in the database that has the same filename, if any.
+        public final Song old_song;
+
+        public TagResult(Song song, SongInfo obj, Song old_song) {
+            this.song = song;
+            this.obj = obj;
+            this.old_song = old_song;
+        }
+    }
+
+    /**
+     * Pop up a progress dialog, and start a background thread to scan the library.
+     */
+    public void rescan_library(Jukebox jukebox) {
+        this.jukebox = jukebox;
+        this.dialog = new ProgressDialog(this.jukebox.main_window,
+                "Rescan Library...", "Looking for changed files...");
+
+        // Read the database here, since only the UI thread changes it.
+        Database database = this.jukebox.database;
+        final Map<String, Song> known_files = new HashMap<>();
+        for (Song song : database.song_list) {
+            if (song.filename != null) {
+                known_files.put(song.filename, song);
+            }
+        }
+        final Set<String> roots = database.get_top_folders();
+
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                run_rescan(known_files, roots);
+            }
+        };
+        Thread thread = new Thread(runnable);
+        thread.start();
+    }
+
+    private void run_rescan(Map<String, Song> known_files, Set<String> roots) {
+        // Find every file in the top-level folders that hold the library.
+        Set<String> found_files = new HashSet<>();
+        Set<String> scanned_roots = new HashSet<>();
+        for (String root : roots) {
+            File directory = this.jukebox.getFile(root);
+            List<String> files = new ArrayList<>();
+            if (directory.isDirectory()) {
+                this.dialog.set_bottom_label("Scanning " + root);
+                files = Utils.read_directory_tree(
+                        directory, this.jukebox.getHomeDirectory(), new TreeSet<>());
+            }
+            // The database has songs in every root, so an empty one isn't really there.
+            if (files.isEmpty()) {
+                this.unavailable_roots.add(root);
+                continue;
+            }
+            scanned_roots.add(root);
+            found_files.addAll(files);
+        }
+
+        // Compare the files to the database.
+        List<Song> changed_songs = new ArrayList<>();
+        for (Song song : known_files.values()) {
+            File file = this.jukebox.getFile(song);
+            int idx = song.filename.indexOf('/');
+            if (idx > 0 ? !scanned_roots.contains(song.filename.substring(0, idx + 1)) :
+                    !file.getParentFile().isDirectory()) {
+                // The song's drive isn't mounted.
+                continue;
+            }
+            if (idx > 0 ? !found_files.contains(song.filename) : !file.isFile()) {
+                this.missing_songs.add(song);
+                continue;
+            }
+            long size = file.length();
+            int mtime = (int) (file.lastModified() / 1000L);
+            if (mtime != song.mtime || (song.size > 0 && size != song.size)) {
+                changed_songs.add(song);
+            } else if (song.size == 0) {
+                this.song_sizes.put(song, size);
+            }
+        }
+        List<String> new_files = new ArrayList<>();
+        for (String filename : found_files) {
+            if (!known_files.containsKey(filename)) {
+                new_files.add(filename);
+            }
+        }
+        new_files.sort(null);
+
+        // Read the tags of the changed and new files.
+        List<TagResult> results = read_tags(changed_songs, new_files);
+        for (TagResult result : results) {
+            if (result.old_song != null) {
+                this.updated_songs.add(result);
+            } else if (result.song.title != null) {
+                this.new_songs.add(result);
+            }
+        }
+
+        this.dialog.close_and_run(new Runnable() {
+            @Override
+            public void run() {
+                apply_changes();
+            }
+        });
+    }
+
+    /**
+     * Read the tags of the given songs and files on a pool of threads.
+     */
+    private List<TagResult> read_tags(List<Song> changed_songs, List<String> new_files) {
+        int total = changed_songs.size() + new_files.size();
+        List<TagResult> results = new ArrayList<>();
+        if (total == 0) {
+            return results;
+        }
+        List<Future<TagResult>> futures = new ArrayList<>();
+        ExecutorService readers =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (Song song : changed_songs) {
+                futures.add(readers.submit(() -> read_tags(song.filename, song)));
+            }
+            for (String filename : new_files) {
+                futures.add(readers.submit(() -> read_tags(filename, null)));
+            }
+            long last_progress = 0;
+            for (Future<TagResult> future : futures) {
+                results.add(future.get());
+                long now = System.currentTimeMillis();
+                if (now - last_progress >= PROGRESS_INTERVAL_MS || results.size() == total) {
+                    last_progress = now;
+                    this.dialog.set_progress(results.size(), total);
+                    this.dialog.set_bottom_label("Read: " + results.size() + " / " + total);
+                }
+            }
+        } catch (Exception exception) {
+            System.err.println("rescan: " + exception);
+            this.is_complete = false;
+        } finally {
+            readers.shutdownNow();
+        }
+        return results;
+    }
+
+    private TagResult read_tags(String filename, Song old_song) {
+        Song song = new Song();
+        SongInfo obj = new SongInfo();
+        AddToLibraryManager.read_id3_tags(this.jukebox, filename, song, obj);
+        return new TagResult(song, obj, old_song);
+    }
+
+    /**
+     * Apply all of the changes to the database. This runs in the UI thread.
+     */
+    private void apply_changes() {
+        Database database = this.jukebox.database;
+        for (TagResult result : this.updated_songs) {
+            Song song = result.song;
+            if (song.title == null) {
+                continue;
+            }
+            // Keep the fields that don't come from the file.
+            result.obj.add_time = database.columns.get_add_time(result.old_song.id);
+            song.tags = result.old_song.tags;
+            if (result.obj.bpm == null) {
+                result.obj.bpm = database.columns.get_bpm_text(result.old_song.id);
+            }
+            database.put_song(song, result.obj);
+        }
+        // Skip the missing songs that were deleted while we were scanning.
+        List<Song> missing_songs = new ArrayList<>();
+        for (Song song : this.missing_songs) {
+            if (database.find_song(song.filename) == song) {
+                missing_songs.add(song);
+            }
+        }
+        MovedSongFinder finder = new MovedSongFinder(database, missing_songs);
+        Set<Song> renamed_songs = new HashSet<>();
+        int added_count = 0;
+        for (TagResult result : this.new_songs) {
+            Song song = finder.find(result.song, result.obj);
+            if (song != null) {
+                song.mtime = result.song.mtime;
+                song.size = result.song.size;
+                song.hash = result.song.hash;
+                database.rename_song(song, result.song.filename);
+                renamed_songs.add(song);
+            } else {
+                database.add_song(result.song, result.obj);
+                added_count++;
+            }
+        }
+        // If some files weren't read, then a missing song may have moved to one of them.
+        int deleted_count = 0;
+        if (this.is_complete) {
+            for (Song song : missing_songs) {
+                if (!renamed_songs.contains(song)) {
+                    database.delete_song(song.filename);
+                    deleted_count++;
+                }
+            }
+        }
+        // After the other changes, so that rewriting the database file saves them too.
+        database.set_song_sizes(this.song_sizes);
+        if (!renamed_songs.isEmpty()) {
+            this.jukebox.check_database.songs_renamed();
+        }
+        System.out.println("rescan: " + added_count + " added, " +
+                this.updated_songs.size() + " updated, " + renamed_songs.size() +
+                " moved, " + deleted_count + " deleted" +
+                (this.is_complete ? "" : ", not deleting missing songs"));
+        this.jukebox.reset_albums();
+        if (!this.unavailable_roots.isEmpty()) {
+            MessageBox box = new MessageBox(this.jukebox.main_window, SWT.ICON_WARNING | SWT.OK);
+            box.setText("Rescan Library");
+            box.setMessage("These folders were not found or are empty, so their songs were " +
+                    "not checked:\n\n" + String.join("\n", this.unavailable_roots));
+            box.open();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An inverted index from every three-character substring of a song's searchable text to the
+ * songs that contain it. The searchable text is the song's title, tags, year and artist, and
+ * its album's name and artist.
+ *
+ * The index answers "which songs might contain this text?" If a song contains the text, then it
+ * contains all of the text's trigrams, so it is in the result. The result can also contain songs
+ * that don't match, for example songs whose name has changed, so the caller must check the
+ * songs in the result.
+ */
+public class SearchIndex {
+
+    private static final int GRAM_LENGTH = 3;
+
+    // Map from trigram to the sorted list of songs that contain it.
+    private final Map<Long, IntList> postings;
+
+    public SearchIndex() {
+        this.postings = new HashMap<>();
+    }
+
+    /**
+     * Add the song's current text to the index.
+     */
+    public synchronized void add_song(Database database, Song song) {
+        for (long gram : get_song_grams(database, song)) {
+            add_gram(gram, song.id);
+        }
+    }
+
+    /**
+     * Remove the song from the index. Call this before the song's text is cleared.
+     */
+    public synchronized void remove_song(Database database, Song song) {
+        for (long gram : get_song_grams(database, song)) {
+            remove_gram(gram, song.id);
+        }
+    }
+
+    /**
+     * Replace the song's old text in the index with its current text.
+     *
+     * @param old_grams The song's trigrams before its text changed, from get_song_grams() or
+     *            get_grams().
+     */
+    public synchronized void update_song(Database database, Song song, Set<Long> old_grams) {
+        Set<Long> grams = get_song_grams(database, song);
+        for (long gram : old_grams) {
+            if (!grams.contains(gram)) {
+                remove_gram(gram, song.id);
+            }
+        }
+        for (long gram : grams) {
+            if (!old_grams.contains(gram)) {
+                add_gram(gram, song.id);
+            }
+        }
+    }
+
+    private void add_gram(long gram, int songid) {
+        IntList songs = this.postings.get(gram);
+        if (songs == null) {
+            songs = new IntList();
+            this.postings.put(gram, songs);
+        }
+        int idx = songs.binary_search(songid);
+        if (idx < 0) {
+            songs.add(-idx - 1, songid);
+        }
+    }
+
+    private void remove_gram(long gram, int songid) {
+        IntList songs = this.postings.get(gram);
+        if (songs == null) {
+            return;
+        }
+        int idx = songs.binary_search(songid);
+        if (idx >= 0) {
+            songs.remove(idx);
+        }
+        if (songs.size() == 0) {
+            this.postings.remove(gram);
+        }
+    }
+
+    /**
+     * @return a copy of the index, from each trigram to the sorted ids of its songs.
+     */
+    public synchronized Map<Long, int[]> get_postings() {
+        Map<Long, int[]> postings = new HashMap<>();
+        for (Map.Entry<Long, IntList> entry : this.postings.entrySet()) {
+            IntList songs = entry.getValue();
+            int[] songids = new int[songs.size()];
+            for (int idx = 0; idx < songids.length; idx++) {
+                songids[idx] = songs.get(idx);
+            }
+            postings.put(entry.getKey(), songids);
+        }
+        return postings;
+    }
+
+    /**
+     * Set the songs that contain the trigram, when the index is read from a snapshot.
+     *
+     * @param songs The sorted ids of the songs.
+     */
+    public synchronized void put_postings(long gram, IntList songs) {
+        this.postings.put(gram, songs);
+    }
+
+    /**
+     * @param key Text in the form returned by Utils.search_key().
+     * @return the ids of the songs that might contain the given text, in increasing order, or
+     *         null if the text is too short to look up in the index.
+     */
+    public synchronized IntList find(String key) {
+        Set<Long> grams = new HashSet<>();
+        add_grams(grams, key);
+        if (grams.isEmpty()) {
+            return null;
+        }
+        List<IntList> lists = new ArrayList<>();
+        for (long gram : grams) {
+            IntList songs = this.postings.get(gram);
+            if (songs == null) {
+                return new IntList();
+            }
+            lists.add(songs);
+        }
+        // Start with the shortest list, so the intersections are as short as possible.
+        lists.sort((list1, list2) -> list1.size() - list2.size());
+        IntList result = copy(lists.get(0));
+        for (int idx = 1; idx < lists.size() && result.size() > 0; idx++) {
+            result = intersect(result, lists.get(idx));
+        }
+        return result;
+    }
+
+    /**
+     * @return the trigrams of the song's current searchable text.
+     */
+    public static Set<Long> get_song_grams(Database database, Song song) {
+        Album album = database.album_list.get(database.columns.get_albumid(song.id));
+        return get_grams(song.title_key, song.tags_key, database.columns.get_year(song.id),
+                database.artist_list.get(song.artistid).key, album.key,
+                database.artist_list.get(album.artistid).key);
+    }
+
+    /**
+     * @return the trigrams of a song's searchable text. The text arguments are search keys.
+     */
+    public static Set<Long> get_grams(String title_key, String tags_key, int year,
+                                      String artist_key, String album_key,
+                                      String album_artist_key) {
+        Set<Long> grams = new HashSet<>();
+        add_grams(grams, title_key);
+        add_grams(grams, tags_key);
+        if (year > 0) {
+            add_grams(grams, Integer.toString(year));
+        }
+        add_grams(grams, artist_key);
+        add_grams(grams, album_key);
+        add_grams(grams, album_artist_key);
+        return grams;
+    }
+
+    /**
+     * Add every trigram of the search key to the set.
+     */
+    private static void add_grams(Set<Long> grams, String text) {
+        if (text == null) {
+            return;
+        }
+        for (int idx = 0; idx + GRAM_LENGTH <= text.length(); idx++) {
+            long gram = ((long) text.charAt(idx) << 32) |
+                    ((long) text.charAt(idx + 1) << 16) | text.charAt(idx + 2);
+            grams.add(gram);
+        }
+    }
+
+    private static IntList copy(IntList list) {
+        IntList result = new IntList();
+        for (int idx = 0; idx < list.size(); idx++) {
+            result.add(list.get(idx));
+        }
+        return result;
+    }
+
+    /**
+     * @return the values that appear in both sorted lists.
+     */
+    private static IntList intersect(IntList list1, IntList list2) {
+        IntList result = new IntList();
+        int idx1 = 0, idx2 = 0;
+        while (idx1 < list1.size() && idx2 < list2.size()) {
+            int value1 = list1.get(idx1);
+            int value2 = list2.get(idx2);
+            if (value1 < value2) {
+                idx1++;
+            } else if (value1 > value2) {
+                idx2++;
+            } else {
+                result.add(value1);
+                idx1++;
+                idx2++;
+            }
+        }
+        return result;
+    }
+}
@@ -4,17 +4,13 @@ public class Song {
     public int id;
     public String filename;
     public int mtime;
+    public long size;
     public String title;
     public int artistid;
-    public int albumid;
     public int track_number;
-    public int year;
     public int duration;
-    public String bitrate;
-    public String bpm;
-    public String id3;
-    public String encoder;
-    public String encoderVersion;
-    public int add_time;
     public String tags;
+    public String hash;
+    public String title_key;
+    public String tags_key;
 }
@@ -0,0 +1,276 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The songs' album ids, years, add times, bitrates, bpms, tag types and encoders, in arrays
+ * indexed by song id, so that scans over many songs, such as the filters, read a few arrays
+ * instead of following a pointer to every Song. Song doesn't have these fields, so this is the
+ * only copy of them.
+ *
+ * The bitrate, bpm, tag type, encoder and encoder version have only a few distinct values, so
+ * each one is stored as a code, which is its index in a dictionary of the distinct values. The
+ * bitrates and bpms are also parsed once per distinct value, for the filters to compare.
+ *
+ * An array is replaced when it grows, so a reader in another thread may see an old array. Song
+ * ids and codes past the end of an array read as unknown.
+ */
+public class SongColumns {
+
+    /**
+     * The distinct values of a string field. Code 0 means the song has no value.
+     */
+    private static class Dictionary {
+        public final List<String> names;
+        private final Map<String, Integer> codes;
+
+        public Dictionary() {
+            this.names = new ArrayList<>();
+            this.names.add(null);
+            this.codes = new HashMap<>();
+        }
+
+        public int get_code(String name) {
+            if (name == null) {
+                return 0;
+            }
+            Integer code = this.codes.get(name);
+            if (code == null) {
+                code = this.names.size();
+                this.names.add(name);
+                this.codes.put(name, code);
+            }
+            return code;
+        }
+
+        public String get_name(int code) {
+            return code < this.names.size() ? this.names.get(code) : null;
+        }
+    }
+
+    private int[] albumid;
+    private int[] year;
+    private int[] add_time;
+    private int[] bitrate;
+    private int[] bpm;
+    private int[] id3;
+    private int[] encoder;
+    private int[] encoder_version;
+    private final Dictionary bitrates;
+    private final Dictionary bpms;
+    private final Dictionary id3s;
+    private final Dictionary encoders;
+    private final Dictionary encoder_versions;
+    // The parsed bitrates and bpms, indexed by code.
+    private int[] bitrate_values;
+    private double[] bpm_values;
+
+    public SongColumns() {
+        this.albumid = new int[0];
+        this.year = new int[0];
+        this.add_time = new int[0];
+        this.bitrate = new int[0];
+        this.bpm = new int[0];
+        this.id3 = new int[0];
+        this.encoder = new int[0];
+        this.encoder_version = new int[0];
+        this.bitrates = new Dictionary();
+        this.bpms = new Dictionary();
+        this.id3s = new Dictionary();
+        this.encoders = new Dictionary();
+        this.encoder_versions = new Dictionary();
+        this.bitrate_values = new int[1];
+        this.bpm_values = new double[]{Double.NaN};
+    }
+
+    private void grow(int songid) {
+        if (songid >= this.albumid.length) {
+            int length = Math.max(songid + 1, this.albumid.length * 2);
+            this.albumid = Arrays.copyOf(this.albumid, length);
+            this.year = Arrays.copyOf(this.year, length);
+            this.add_time = Arrays.copyOf(this.add_time, length);
+            this.bitrate = Arrays.copyOf(this.bitrate, length);
+            this.bpm = Arrays.copyOf(this.bpm, length);
+            this.id3 = Arrays.copyOf(this.id3, length);
+            this.encoder = Arrays.copyOf(this.encoder, length);
+            this.encoder_version = Arrays.copyOf(this.encoder_version, length);
+        }
+    }
+
+    public synchronized void set_albumid(int songid, int value) {
+        grow(songid);
+        this.albumid[songid] = value;
+    }
+
+    public synchronized void set_year(int songid, int value) {
+        grow(songid);
+        this.year[songid] = value;
+    }
+
+    public synchronized void set_add_time(int songid, int value) {
+        grow(songid);
+        this.add_time[songid] = value;
+    }
+
+    /**
+     * Set the song's bitrate, bpm, tag type, encoder and encoder version from the SongInfo.
+     */
+    public synchronized void set_tags(int songid, SongInfo obj) {
+        grow(songid);
+        set_bitrate(songid, obj.bitrate);
+        set_bpm(songid, obj.bpm);
+        this.id3[songid] = this.id3s.get_code(obj.id3);
+        this.encoder[songid] = this.encoders.get_code(obj.encoder);
+        this.encoder_version[songid] = this.encoder_versions.get_code(obj.encoderVersion);
+    }
+
+    private void set_bitrate(int songid, String text) {
+        int code = this.bitrates.get_code(text);
+        if (code >= this.bitrate_values.length) {
+            this.bitrate_values = Arrays.copyOf(this.bitrate_values, code * 2);
+        }
+        this.bitrate_values[code] = parse_bitrate(text);
+        this.bitrate[songid] = code;
+    }
+
+    public synchronized void set_bpm(int songid, String text) {
+        grow(songid);
+        int code = this.bpms.get_code(text);
+        if (code >= this.bpm_values.length) {
+            this.bpm_values = Arrays.copyOf(this.bpm_values, code * 2);
+        }
+        this.bpm_values[code] = parse_bpm(text);
+        this.bpm[songid] = code;
+    }
+
+    /**
+     * Copy the song's bitrate, bpm, tag type, encoder and encoder version into the SongInfo.
+     */
+    public synchronized void get_tags(int songid, SongInfo obj) {
+        obj.bitrate = get_bitrate_text(songid);
+        obj.bpm = get_bpm_text(songid);
+        obj.id3 = this.id3s.get_name(get_code(this.id3, songid));
+        obj.encoder = this.encoders.get_name(get_code(this.encoder, songid));
+        obj.encoderVersion =
+                this.encoder_versions.get_name(get_code(this.encoder_version, songid));
+    }
+
+    /**
+     * @return the number of kbps in a bitrate like "192" or "~245", or 0 for a bitrate like "V2".
+     */
+    private static int parse_bitrate(String bitrate) {
+        if (bitrate == null) {
+            return 0;
+        }
+        int value = 0;
+        int idx = bitrate.startsWith("~") ? 1 : 0;
+        for (; idx < bitrate.length(); idx++) {
+            char ch = bitrate.charAt(idx);
+            if (ch < '0' || ch > '9') {
+                break;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    private static double parse_bpm(String bpm) {
+        if (bpm == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(bpm);
+        } catch (NumberFormatException dummy) {
+            return 0;
+        }
+    }
+
+    /**
+     * Clear the fields of a song that was deleted.
+     */
+    public synchronized void remove(int songid) {
+        if (songid < this.albumid.length) {
+            this.albumid[songid] = 0;
+            this.year[songid] = 0;
+            this.add_time[songid] = 0;
+            this.bitrate[songid] = 0;
+            this.bpm[songid] = 0;
+            this.id3[songid] = 0;
+            this.encoder[songid] = 0;
+            this.encoder_version[songid] = 0;
+        }
+    }
+
+    private static int get_code(int[] column, int songid) {
+        return songid < column.length ? column[songid] : 0;
+    }
+
+    public int get_albumid(int songid) {
+        int[] column = this.albumid;
+        return songid < column.length ? column[songid] : 0;
+    }
+
+    public int get_year(int songid) {
+        int[] column = this.year;
+        return songid < column.length ? column[songid] : 0;
+    }
+
+    public int get_add_time(int songid) {
+        int[] column = this.add_time;
+        return songid < column.length ? column[songid] : 0;
+    }
+
+    /**
+     * @return the bitrate in kbps, or 0 if it is unknown or variable, like "V2".
+     */
+    public int get_bitrate(int songid) {
+        int[] values = this.bitrate_values;
+        int code = get_code(this.bitrate, songid);
+        return code < values.length ? values[code] : 0;
+    }
+
+    /**
+     * @return the bitrate as it was read from the file, or null if it is unknown.
+     */
+    public synchronized String get_bitrate_text(int songid) {
+        return this.bitrates.get_name(get_code(this.bitrate, songid));
+    }
+
+    /**
+     * @return the song's bpm, 0 if its bpm is not a number, or NaN if it has no bpm.
+     */
+    public double get_bpm(int songid) {
+        double[] values = this.bpm_values;
+        int code = get_code(this.bpm, songid);
+        return code < values.length ? values[code] : Double.NaN;
+    }
+
+    /**
+     * @return the bpm as it was read from the file, or null if the song has no bpm.
+     */
+    public synchronized String get_bpm_text(int songid) {
+        return this.bpms.get_name(get_code(this.bpm, songid));
+    }
+
+    public int get_encoder(int songid) {
+        return get_code(this.encoder, songid);
+    }
+
+    /**
+     * @return the distinct encoders, indexed by code. The first is null.
+     */
+    public synchronized List<String> get_encoder_names() {
+        return new ArrayList<>(this.encoders.names);
+    }
+}
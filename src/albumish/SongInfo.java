@@ -4,4 +4,11 @@ public class SongInfo {
     public String artist;
     public String album;
     public String album_artist;
+    public int year;
+    public int add_time;
+    public String bitrate;
+    public String bpm;
+    public String id3;
+    public String encoder;
+    public String encoderVersion;
 }
@@ -12,14 +12,24 @@ import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.events.SelectionListener;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
 import org.eclipse.swt.widgets.TableItem;
 
-public class SongPanel implements SelectionListener {
+/**
+ * A table of songs. The table is virtual, so a row's text is only made when the row is shown.
+ */
+public class SongPanel implements SelectionListener, Listener {
+
+    // How many rows to measure when setting the column widths.
+    private static final int SAMPLE_ROWS = 100;
 
     private final Jukebox player;
     private final Table table;
+    private final boolean with_checks;
+    private int[] songs;
     private boolean show_bitrate;
     private boolean show_bpm;
     private int playlistid;
@@ -27,8 +37,11 @@ public class SongPanel implements SelectionListener {
     public SongPanel(Jukebox player, Composite parent, boolean with_checks) {
         this.playlistid = -1;
         this.player = player;
+        this.with_checks = with_checks;
+        this.songs = new int[0];
         int style = (with_checks ? SWT.CHECK : 0);
-        this.table = new Table(parent, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI | style);
+        this.table = new Table(parent,
+                SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI | SWT.VIRTUAL | style);
         TableColumn column;
         new TableColumn(this.table, SWT.RIGHT);
         column = new TableColumn(this.table, SWT.LEFT);
@@ -57,6 +70,7 @@ public class SongPanel implements SelectionListener {
             pcolumn.pack();
         }
         this.table.addSelectionListener(this);
+        this.table.addListener(SWT.SetData, this);
     }
 
     public Control getControl() {
@@ -65,49 +79,19 @@ public class SongPanel implements SelectionListener {
 
     public void reset(IntList songs, int selected_idx) {
         this.table.setRedraw(false);
-        Database database = this.player.database;
-        CheckDatabase check_database = this.player.check_database;
-        int count = this.table.getItemCount();
         int num_songs = (songs == null ? 0 : songs.size());
+        this.songs = new int[num_songs];
         for (int idx = 0; idx < num_songs; idx++) {
-            TableItem item;
-            if (idx < count) {
-                item = this.table.getItem(idx);
-            } else {
-                item = new TableItem(this.table, 0);
-            }
-            Song song = database.song_list.get(songs.get(idx));
-            item.setData(song);
-            item.setChecked(check_database.get(song.id));
-            String duration = null;
-            if (song.duration > 0) {
-                int min = song.duration / 60;
-                int sec = song.duration % 60;
-                duration = min + ":" + (sec < 10 ? "0" : "") + sec;
-            }
-            String[] row = new String[]{
-                    song.track_number > 0 ? Integer.toString(song.track_number) : null,
-                    song.title, duration,
-                    song.artistid > 0 ? database.artist_list.get(song.artistid).name : null,
-                    song.albumid > 0 ? database.album_list.get(song.albumid).name : null,
-                    song.year > 0 ? Integer.toString(song.year) : null
-            };
-            if (this.show_bitrate) {
-                if (this.show_bpm) {
-                    row = Utils.addAll(row, song.bitrate, show_bpm(song.bpm));
-                } else {
-                    row = Utils.addAll(row, song.bitrate);
-                }
-            } else if (this.show_bpm) {
-                row = Utils.addAll(row, show_bpm(song.bpm));
-            }
-            for (int cnum = 0; cnum < row.length; cnum++) {
-                item.setText(cnum, row[cnum] == null ? "" : row[cnum]);
-            }
+            this.songs[idx] = songs.get(idx);
         }
-        while (count > num_songs) {
-            this.table.remove(count - 1);
-            count--;
+        this.table.clearAll();
+        this.table.setItemCount(num_songs);
+
+        // Fill in a sample of the rows, spread through the table, and size the columns to fit
+        // them. The other rows are filled in when they are shown.
+        int step = Math.max(num_songs / SAMPLE_ROWS, 1);
+        for (int idx = 0; idx < num_songs; idx += step) {
+            set_row(this.table.getItem(idx), idx);
         }
         for (TableColumn column : this.table.getColumns()) {
             column.pack();
@@ -124,14 +108,50 @@ public class SongPanel implements SelectionListener {
         this.table.redraw();
     }
 
-    public void update_database() {
-        CheckDatabase check_database = this.player.check_database;
-        for (TableItem item : this.table.getItems()) {
-            int songid = ((Song) (item.getData())).id;
-            boolean is_checked = item.getChecked();
-            if (is_checked != check_database.get(songid)) {
-                check_database.set(songid, is_checked);
+    /**
+     * Called by the table when a row is about to be shown.
+     */
+    @Override
+    public void handleEvent(Event event) {
+        // The event has the row's index, so we don't need to search the table for the item.
+        set_row((TableItem) event.item, event.index);
+    }
+
+    private void set_row(TableItem item, int idx) {
+        Database database = this.player.database;
+        Song song = database.song_list.get(this.songs[idx]);
+        item.setData(song);
+        if (this.with_checks) {
+            item.setChecked(this.player.check_database.get(song.id));
+        }
+        String duration = null;
+        if (song.duration > 0) {
+            int min = song.duration / 60;
+            int sec = song.duration % 60;
+            duration = min + ":" + (sec < 10 ? "0" : "") + sec;
+        }
+        int albumid = database.columns.get_albumid(song.id);
+        int year = database.columns.get_year(song.id);
+        String[] row = new String[]{
+                song.track_number > 0 ? Integer.toString(song.track_number) : null,
+                song.title, duration,
+                song.artistid > 0 ? database.artist_list.get(song.artistid).name : null,
+                albumid > 0 ? database.album_list.get(albumid).name : null,
+                year > 0 ? Integer.toString(year) : null
+        };
+        String bitrate = database.columns.get_bitrate_text(song.id);
+        String bpm = database.columns.get_bpm_text(song.id);
+        if (this.show_bitrate) {
+            if (this.show_bpm) {
+                row = Utils.addAll(row, bitrate, show_bpm(bpm));
+            } else {
+                row = Utils.addAll(row, bitrate);
             }
+        } else if (this.show_bpm) {
+            row = Utils.addAll(row, show_bpm(bpm));
+        }
+        for (int cnum = 0; cnum < row.length; cnum++) {
+            item.setText(cnum, row[cnum] == null ? "" : row[cnum]);
         }
     }
 
@@ -143,8 +163,17 @@ public class SongPanel implements SelectionListener {
         return this.playlistid;
     }
 
+    /**
+     * When a song's check box is clicked, save it in the check database right away.
+     */
     @Override
     public void widgetSelected(SelectionEvent event) {
+        if (event.detail == SWT.CHECK) {
+            TableItem item = (TableItem) event.item;
+            // The item was shown, so set_row() has set its song.
+            Song song = (Song) item.getData();
+            this.player.check_database.set(song.id, item.getChecked());
+        }
     }
 
     @Override
@@ -157,16 +186,15 @@ public class SongPanel implements SelectionListener {
             this.player.play_song(this.playlistid, active_idx);
             return;
         }
+        CheckDatabase check_database = this.player.check_database;
         IntList song_list = new IntList();
         int song_idx = -1;
-        int count = this.table.getItemCount();
-        for (int idx = 0; idx < count; idx++) {
+        for (int idx = 0; idx < this.songs.length; idx++) {
             if (idx == active_idx) {
                 song_idx = song_list.size();
             }
-            TableItem item = this.table.getItem(idx);
-            int songid = ((Song) (item.getData())).id;
-            boolean is_checked = item.getChecked();
+            int songid = this.songs[idx];
+            boolean is_checked = this.with_checks && check_database.get(songid);
             if (is_checked || idx == active_idx) {
                 song_list.add(songid);
             }
@@ -177,12 +205,8 @@ public class SongPanel implements SelectionListener {
 
     public IntList get_selection() {
         IntList selection = new IntList();
-        TableItem[] items = this.table.getSelection();
-        if (items != null) {
-            for (TableItem item : items) {
-                int songid = ((Song) (item.getData())).id;
-                selection.add(songid);
-            }
+        for (int idx : this.table.getSelectionIndices()) {
+            selection.add(this.songs[idx]);
         }
         return selection;
     }
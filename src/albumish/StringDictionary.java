@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Share one copy of each distinct string. Fields like the tags have only a few distinct values,
+ * but every song that is read from a file gets its own copies of them.
+ */
+public class StringDictionary {
+
+    private final Map<String, String> strings;
+    private int duplicates;
+    private long bytes_saved;
+
+    public StringDictionary() {
+        this.strings = new HashMap<>();
+    }
+
+    /**
+     * @return the dictionary's copy of the string, adding it if it is new.
+     */
+    public synchronized String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String existing = this.strings.putIfAbsent(value, value);
+        if (existing == null) {
+            return value;
+        }
+        if (existing != value) {
+            this.duplicates++;
+            this.bytes_saved += string_bytes(value);
+        }
+        return existing;
+    }
+
+    /**
+     * @return about how much memory the string takes, assuming one byte per character.
+     */
+    private static long string_bytes(String value) {
+        // A String object, plus an array header and its contents, rounded up to 8 bytes.
+        return 24 + ((16 + value.length() + 7) & ~7);
+    }
+
+    public synchronized String get_report() {
+        return this.strings.size() + " distinct strings, " + this.duplicates +
+                " copies dropped, saved " + (this.bytes_saved >> 10) + " KB";
+    }
+}
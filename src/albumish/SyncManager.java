@@ -168,10 +168,9 @@ public class SyncManager {
         this.to_add = new ArrayList<>();
         this.to_update = new ArrayList<>();
         this.to_delete = new ArrayList<>();
-        for (Song song : this.jukebox.database.song_list) {
-            if (song.filename == null || !this.jukebox.check_database.get(song.id)) {
-                continue;
-            }
+        IntList song_list = this.jukebox.check_database.get_checked_songids();
+        for (int idx = 0; idx < song_list.size(); idx++) {
+            Song song = this.jukebox.database.song_list.get(song_list.get(idx));
             String media_name = generate_media_name(song, this.jukebox.database);
             File cache_file = get_song_file_with_artwork(song, media_name);
             File song_file = cache_file != null ? cache_file : this.jukebox.getFile(song);
@@ -231,7 +230,7 @@ public class SyncManager {
         if (filename.isEmpty()) {
             return null;
         }
-        Album album = database.album_list.get(song.albumid);
+        Album album = database.album_list.get(database.columns.get_albumid(song.id));
         Artist artist = database.artist_list.get(album.artistid);
         StringBuilder builder = new StringBuilder();
         Utils.name_to_dirname(builder, artist.name == null ? "Unknown" : artist.name);
@@ -251,7 +250,7 @@ public class SyncManager {
     private File get_song_file_with_artwork(Song song, String media_name) {
         Database database = this.jukebox.database;
         Gallery gallery = this.jukebox.gallery;
-        Album album = database.album_list.get(song.albumid);
+        Album album = database.album_list.get(database.columns.get_albumid(song.id));
         File image_file = gallery.get_image_file(album);
         if (image_file == null || !image_file.exists()) {
             return null;
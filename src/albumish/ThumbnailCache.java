@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2026  Salvatore Valente <svalente@mit.edu>
+ *
+ *  This program is free software.  You can modify and distribute it under
+ *  the terms of the GNU General Public License.  There is no warranty.
+ *  See the file "COPYING" for more information.
+ */
+package albumish;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.ImageLoader;
+
+/**
+ * A directory of album covers that have already been scaled, stored as PNG files, so the
+ * gallery doesn't need to decode and scale the original images every time the program starts.
+ *
+ * Each file is named by a hash of the source file's pathname, modification time and size, and
+ * the scaled size. When the source file changes, its old thumbnails are no longer used.
+ */
+public class ThumbnailCache {
+
+    private final File directory;
+
+    public ThumbnailCache(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println(directory + ": failed to create directory");
+        }
+    }
+
+    /**
+     * @param source The image file, or the audio file that holds the image.
+     * @return the cached image, or null if it is not in the cache.
+     */
+    public ImageData get(File source, int size) {
+        File file = get_file(source, size);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            return new ImageLoader().load(file.getPath())[0];
+        } catch (Exception exception) {
+            System.err.println(file + ": " + exception);
+            file.delete();
+            return null;
+        }
+    }
+
+    public void put(File source, int size, ImageData data) {
+        File file = get_file(source, size);
+        if (file == null) {
+            return;
+        }
+        File tmpfile = new File(file.getPath() + ".tmp");
+        try {
+            ImageLoader loader = new ImageLoader();
+            loader.data = new ImageData[] { data };
+            loader.save(tmpfile.getPath(), SWT.IMAGE_PNG);
+            Utils.replace_file(tmpfile, file);
+        } catch (Exception exception) {
+            tmpfile.delete();
+            System.err.println(file + ": " + exception);
+        }
+    }
+
+    private File get_file(File source, int size) {
+        String key = source.getAbsolutePath() + "\n" + source.lastModified() + "\n" +
+                source.length() + "\n" + size;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder filename = new StringBuilder();
+            for (int idx = 0; idx < 10; idx++) {
+                filename.append(String.format("%02x", hash[idx]));
+            }
+            filename.append(".png");
+            return new File(this.directory, filename.toString());
+        } catch (Exception exception) {
+            System.err.println(source + ": " + exception);
+            return null;
+        }
+    }
+}
@@ -11,14 +11,36 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.text.Normalizer;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
 
 import javazoom.jl.decoder.Bitstream;
+import org.jaudiotagger.audio.SupportedFileFormat;
 
 public class Utils {
     public static void quietClose(Closeable closeable) {
@@ -39,33 +61,115 @@ public class Utils {
         }
     }
 
-    public static List<String> read_directory_tree(File topdir, Set<String> known_files) {
+    /**
+     * Find every audio file in the directory tree rooted at topdir. Subdirectories are read in
+     * parallel on the common fork-join pool.
+     *
+     * @param base The directory that the results are relative to.
+     * @param known_files Filenames, relative to base, to leave out of the results.
+     * @return the filenames relative to base, in sorted order. Files that are not under base
+     *         are returned as absolute pathnames.
+     */
+    public static List<String> read_directory_tree(File topdir, File base,
+                                                   Set<String> known_files) {
+        Queue<Path> paths = new ConcurrentLinkedQueue<>();
+        ForkJoinPool.commonPool().invoke(
+                new DirectoryScan(topdir.toPath(), paths, Collections.emptySet()));
+        Path base_path = base.toPath().toAbsolutePath();
         List<String> results = new ArrayList<>();
-        Queue<File> workqueue = new LinkedList<>();
-        workqueue.add(topdir);
-        while (true) {
-            File directory = workqueue.poll();
-            if (directory == null) {
-                break;
+        for (Path path : paths) {
+            path = path.toAbsolutePath();
+            String filename = path.startsWith(base_path) ?
+                    base_path.relativize(path).toString() : path.toString();
+            if (File.separatorChar != '/') {
+                filename = filename.replace(File.separatorChar, '/');
             }
-            File[] files = directory.listFiles();
-            if (files == null) {
-                continue;
+            if (!known_files.contains(filename)) {
+                results.add(filename);
             }
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    workqueue.add(file);
-                } else if (file.isFile()) {
-                    String pathname = file.getAbsolutePath();
-                    if (!known_files.contains(pathname)) {
-                        results.add(pathname);
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    /**
+     * The file suffixes that AudioFileIO can read, such as "mp3".
+     */
+    private static final Set<String> AUDIO_SUFFIXES = new HashSet<>();
+    static {
+        for (SupportedFileFormat format : SupportedFileFormat.values()) {
+            AUDIO_SUFFIXES.add(format.getFilesuffix());
+        }
+    }
+
+    public static boolean is_audio_file(String filename) {
+        int idx = filename.lastIndexOf('.');
+        return idx >= 0 && AUDIO_SUFFIXES.contains(
+                filename.substring(idx + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Read one directory, with the attributes of all of its entries, and then read its
+     * subdirectories in parallel.
+     */
+    private static class DirectoryScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+        private final Queue<Path> results;
+        // The file keys of the directories above this one, so a symbolic link to one of them
+        // doesn't make us loop forever.
+        private final Set<Object> ancestors;
+
+        public DirectoryScan(Path directory, Queue<Path> results, Set<Object> ancestors) {
+            this.directory = directory;
+            this.results = results;
+            this.ancestors = ancestors;
+        }
+
+        @Override
+        protected void compute() {
+            final List<DirectoryScan> subdirs = new ArrayList<>();
+            final Set<Object> path_keys = new HashSet<>(this.ancestors);
+            FileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (attrs.fileKey() != null) {
+                        path_keys.add(attrs.fileKey());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (attrs.isDirectory()) {
+                        if (!path_keys.contains(attrs.fileKey())) {
+                            subdirs.add(new DirectoryScan(path, DirectoryScan.this.results,
+                                    path_keys));
+                        }
+                    } else if (attrs.isRegularFile()) {
+                        if (is_audio_file(path.getFileName().toString())) {
+                            DirectoryScan.this.results.add(path);
+                        }
+                    } else {
+                        System.err.println(path + ": not a file or directory");
                     }
-                } else {
-                    System.err.println(file.toString() + ": not a file or directory");
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException exception) {
+                    System.err.println(path + ": " + exception);
+                    return FileVisitResult.CONTINUE;
                 }
+            };
+            try {
+                Files.walkFileTree(this.directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1,
+                        visitor);
+            } catch (IOException exception) {
+                System.err.println(this.directory + ": " + exception);
             }
+            invokeAll(subdirs);
         }
-        return results;
     }
 
     public static int parseInt(String text) {
@@ -76,6 +180,35 @@ public class Utils {
         }
     }
 
+    /**
+     * @return the number of bytes allocated so far by the current thread, or -1 if the JVM
+     *         does not keep track.
+     */
+    public static long allocated_bytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * Convert text to the form used for searching and sorting: lower case, with accents
+     * removed, so a filter typed without accents matches a name with accents.
+     */
+    public static String search_key(String text) {
+        if (text == null) {
+            return null;
+        }
+        String key = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        key = COMBINING_MARKS.matcher(key).replaceAll("").toLowerCase(Locale.ROOT);
+        // Don't keep a second copy of text that was already in search form.
+        return key.equals(text) ? text : key;
+    }
+
     public static boolean isEmpty(String text) {
         return text == null || text.equals("");
     }
@@ -147,6 +280,49 @@ public class Utils {
         }
     }
 
+    /**
+     * Rename a newly written file over the file that it replaces. Use an atomic rename if the
+     * file system supports it, so readers see either the old file or the new one.
+     */
+    public static void replace_file(File srcfile, File dstfile) throws IOException {
+        try {
+            Files.move(srcfile.toPath(), dstfile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(srcfile.toPath(), dstfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return a hash of the first and last 64 KB of the file, which is enough to tell whether a
+     *         moved file is the same as a missing one, or null if the file can't be read.
+     */
+    public static String partial_hash(File file) {
+        final int chunk_size = 64 * 1024;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            long length = input.length();
+            byte[] buffer = new byte[(int) Math.min(length, chunk_size)];
+            input.readFully(buffer);
+            digest.update(buffer);
+            if (length > chunk_size) {
+                buffer = new byte[(int) Math.min(length - chunk_size, chunk_size)];
+                input.seek(length - buffer.length);
+                input.readFully(buffer);
+                digest.update(buffer);
+            }
+            StringBuilder builder = new StringBuilder();
+            byte[] result = digest.digest();
+            for (int idx = 0; idx < 8; idx++) {
+                builder.append(String.format("%02x", result[idx]));
+            }
+            return builder.toString();
+        } catch (Exception exception) {
+            System.err.println(file + ": " + exception);
+            return null;
+        }
+    }
+
     public static String basename(String filename) {
         int idx = filename.lastIndexOf('/');
         return idx >= 0 ? filename.substring(idx + 1) : filename;